@@ -1,5 +1,7 @@
 package ru.geekbrains.netty.selector01.server;
 
+import ru.geekbrains.netty.selector01.server.utils.SharedBuffer;
+
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -10,7 +12,10 @@ import java.time.Instant;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 // ByteBuffer cache for clients
@@ -24,9 +29,13 @@ public class ConnectionList implements Iterable<Map.Entry<Integer, ConnectionLis
         private SelectionKey key;
         private SocketChannel channel;
         private ByteBuffer readBuffer;
-        private ByteBuffer writeBuffer; //ToDo: Тут надо городить очередь сообщений в случае чата
         private Instant time;
-        private ByteBuffer data;        // emulating data(file) needed to be transferred to client
+        // очередь сообщений на отправку - представления общих буферов рассылки (см. SharedBuffer)
+        private final Queue<SharedBuffer.View> outbound = new ConcurrentLinkedQueue<>();
+        // handleWrite уже выполняется в другом потоке из пула
+        private final AtomicBoolean writing = new AtomicBoolean();
+        // соединение закрыто - очередь больше не пишется, только отпускается
+        private volatile boolean closed;
         private RandomAccessFile file; // not implemented
 
         private ByteArrayOutputStream bufferStream;
@@ -37,26 +46,72 @@ public class ConnectionList implements Iterable<Map.Entry<Integer, ConnectionLis
             this.key = key;
             this.channel = (SocketChannel)key.channel();
             this.readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-            this.writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
             this.bufferStream = new ByteArrayOutputStream();
             this.time = time;
-            this.data = null;
         }
 
         public ByteBuffer getReadBuffer() {
             return readBuffer;
         }
 
-        public ByteBuffer getWriteBuffer() {
-            return writeBuffer;
+        public Queue<SharedBuffer.View> getOutbound() {
+            return outbound;
         }
 
-        public ByteBuffer getData() {
-            return data;
+        public boolean beginWrite() {
+            return writing.compareAndSet(false, true);
         }
 
-        public void setData(ByteBuffer data) {
-            this.data = data;
+        public void endWrite() {
+
+            writing.set(false);
+
+            // соединение закрыли, пока писали - очередь отпускаем сами
+            if (closed) {
+                releaseOutbound();
+            }
+        }
+
+        /**
+         * Поставить сообщение в очередь
+         * @return false - соединение уже закрыто, сообщение отпущено
+         */
+        public boolean enqueue(SharedBuffer.View view) {
+
+            outbound.add(view);
+
+            if (closed) {
+                releaseOutbound();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Отпустить недоставленные сообщения (при закрытии соединения).
+         * <br>
+         * Очередь чистит только тот, кто держит writing: пока handleWrite пишет из головы очереди,
+         * ее дочистит он сам (см. endWrite) - иначе буфер вернулся бы в пул посреди записи
+         */
+        public void releaseOutbound() {
+
+            closed = true;
+
+            // кто-то успел добавить, пока держали writing - повторяем
+            while (!outbound.isEmpty() && beginWrite()) {
+
+                try {
+                    SharedBuffer.View view;
+                    while ((view = outbound.peek()) != null) {
+                        if (outbound.remove(view)) {
+                            view.release();
+                        }
+                    }
+                }
+                finally {
+                    writing.set(false);
+                }
+            }
         }
 
         public SelectionKey getKey() {
@@ -126,6 +181,9 @@ public class ConnectionList implements Iterable<Map.Entry<Integer, ConnectionLis
                 } catch (IOException ignored) {}
             }
 
+            // release queued messages
+            connection.releaseOutbound();
+
             // close file
             RandomAccessFile file = connection.file;
             if (file != null) {
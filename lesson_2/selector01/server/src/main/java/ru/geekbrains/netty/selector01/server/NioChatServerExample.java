@@ -1,7 +1,7 @@
 package ru.geekbrains.netty.selector01.server;
 
 import ru.geekbrains.netty.selector01.server.jobpool.BlockingJobPool;
-import ru.geekbrains.netty.selector01.server.utils.LibUtil;
+import ru.geekbrains.netty.selector01.server.utils.SharedBuffer;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -12,6 +12,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.IntUnaryOperator;
@@ -115,7 +116,8 @@ public class NioChatServerExample implements Runnable {
                     }
 
 
-                    if (key.isReadable()) {
+                    // ключ мог закрыться в потоке из пула
+                    if (key.isValid() && key.isReadable()) {
 
                         // Чтобы не бегать бесконечно в цикле select
                         // Пока потоки из пула читают из сокетов
@@ -179,8 +181,9 @@ public class NioChatServerExample implements Runnable {
             connectionList.add(clientKey);
 
 
-            ByteBuffer welcomeBuf = ByteBuffer.wrap(welcomeString.getBytes());
-            writeChannel(clientKey, welcomeBuf);
+            SharedBuffer welcome = SharedBuffer.wrap(welcomeString.getBytes());
+            writeChannel(clientKey, welcome.view());
+            welcome.release();
 
             System.out.println("Подключился новый клиент #" + id);
 
@@ -258,9 +261,9 @@ public class NioChatServerExample implements Runnable {
 
             // broadcasting msg to all clients
             msg = key.attachment() + ": " + msg + "\n";
-            ByteBuffer broadBuffer = ByteBuffer.wrap(msg.getBytes());
+            SharedBuffer message = SharedBuffer.wrap(msg.getBytes());
             jobPool.add(() -> {
-                broadcast(broadBuffer);
+                broadcast(message);
                 return null;
             });
 
@@ -289,69 +292,76 @@ public class NioChatServerExample implements Runnable {
             SocketChannel client = (SocketChannel) key.channel();
             int id = (int)key.attachment();
 
-            ByteBuffer buffer = connectionList.get(id).getWriteBuffer();
-            ByteBuffer data = connectionList.get(id).getData();
+            ConnectionList.Connection connection = connectionList.get(id);
+            if (connection == null) {
+                return;
+            }
 
-            int wrote;
+            // Уже пишет другой поток из пула - он и допишет очередь
+            if (!connection.beginWrite()) {
+                return;
+            }
 
-            // wrote  >  0  - wrote some data
-            // wrote  =  0  - no data written // need register(selector, SelectionKey.OP_READ, id);
-            // wrote  = -1  - connection closed
+            Queue<SharedBuffer.View> outbound = connection.getOutbound();
 
+            try {
 
-            // пишем в сокет, пока есть что передавать
-            // и сокет принимает данные (не затопился)
-            do {
+                // пишем в сокет, пока есть что передавать
+                // и сокет принимает данные (не затопился)
+                SharedBuffer.View view;
+                while ((view = outbound.peek()) != null) {
 
-                buffer.rewind();
-                LibUtil.copyBuffer(data, buffer);
-                buffer.flip();
-
-            }
-            while ((wrote = client.write(buffer)) > 0 &
-                   data.remaining() > 0);
+                    // пишем прямо из общего буфера рассылки, позиция - своя у каждого получателя
+                    ByteBuffer data = view.getData();
+                    client.write(data);
 
-            // причем, если не отправилось по сети, то в buffer будет лежать кусок
-            // (скопированный из data), который так и не отправился
-            //
-            //
-            // Это все к тому, то нельзя начинать передавать новые данные, пока по сети не передалось
-            // текущее сообщение
+                    // Флудим сокет данными - не успевает принимать на удаленном конце
+                    // непереданная часть останется в view до следующего цикла передачи
+                    if (data.hasRemaining()) {
+                        break;
+                    }
 
+                    // сообщение доставлено - отпускаем ссылку на общий буфер
+                    // (только если view еще в очереди - отпускается ровно один раз)
+                    if (outbound.remove(view)) {
+                        view.release();
+                    }
+                }
+            }
+            catch (IOException e) {
 
-            // Remote endpoint close connection
-            if (wrote < 0) {
+                // Remote endpoint close connection
                 String msg = key.attachment() + " покинул чат\n";
                 System.out.print(msg);
                 client.close();
                 connectionList.remove(id);
+                return;
             }
+            finally {
+                connection.endWrite();
+            }
+
 
-            // Флудим сокет данными - не успевает принимать на удаленном конце
-            // буффер не отправился целиком
-            // Регистрируемся на флаг что удаленный сокет может принимать сообщения
-            else if (buffer.remaining() > 0) {
+            if (outbound.isEmpty()) {
 
-                // Сохранить непереданную часть для следущего цикла передачи
-                buffer.compact();
+                // Если подписывались на флаг готовности на отправку и успешно отправили
+                // Выставляем бит OP_WRITE в 0 (отписываемся)
+                removeInterest(key, SelectionKey.OP_WRITE);
+
+                // Пока отписывались, другой поток мог положить новое сообщение
+                if (!outbound.isEmpty()) {
+                    setInterest(key, SelectionKey.OP_WRITE);
+                    selector.wakeup();
+                }
+            }
+            else {
 
+                // Регистрируемся на флаг что удаленный сокет может принимать сообщения
                 // Выставляем бит OP_WRITE в 1
                 // (подписываемся на флаг готовности сокета отправлять данные)
                 setInterest(key, SelectionKey.OP_WRITE);
                 // update selector
                 selector.wakeup();
-
-            }
-            // data.remaining() == 0
-            else {
-                connectionList.get(id).setData(null);
-
-                // prepare buffer to next transmit
-                buffer.clear();
-
-                // Если подписывались на флаг готовности на отправку и успешно отправили
-                // Выставляем бит OP_WRITE в 0 (отписываемся)
-                removeInterest(key, SelectionKey.OP_WRITE);
             }
 
         } catch (Exception e) {
@@ -362,39 +372,32 @@ public class NioChatServerExample implements Runnable {
 
     /**
      * Write data to client using handleWrite(..)
+     * <br>
+     * Сообщение встает в очередь клиента (в порядке поступления)
      */
-    private void writeChannel(SelectionKey key, ByteBuffer data) {
-
-        // Т.к. все асинхронное (несколько потоков)
-        // То одному и тому же клиенту могут начать отправлять одновременно нескольуо сообщений -
-        // Надо делать очередь сообщений (на отправку) для клиента.
-        // (Потом, например, удалять только те сообщения, котороые удалось доставить,
-        // получится к-то сетевой мессенджер, да клиент еще в оффлайне может быть, очередь хранить надо)
+    private void writeChannel(SelectionKey key, SharedBuffer.View data) {
 
         int id = (int)key.attachment();
 
-        //ToDo: проверить нет ли текущих данных на отправку
-        // и если есть, то просто не отправлять
-        // Можно, конечно валить все в сокет, (и больше 3 метров в неблокирующем режиме не залезет)
-        // Но если там не принимают, то
-        // как буффер в нашей сетевой подсистеме переполнится, то данные начнут теряться (что они и делают)
-
-
-        if (connectionList.get(id).getData() != null) {
+        ConnectionList.Connection connection = connectionList.get(id);
+        if (connection == null) {
+            data.release();
             return;
         }
 
-        data.rewind();
-        connectionList.get(id).setData(data);
+        // соединение успели закрыть - сообщение уже отпущено
+        if (!connection.enqueue(data)) {
+            return;
+        }
         setInterest(key, SelectionKey.OP_WRITE);
     }
 
 
-    // Копии data множатся на сервере по 1 штуке на каждого клиента
-    // Можно было бы не множить и защитить доступ к data с помощью критической секции
-    // Но что делать если один клиент залипнет (и из-за защиты все остальное тоже подвиснет ?)
-    // соответственно толкание не глядя в сокет закончится переполнением буфера сокета
-    private void broadcast(ByteBuffer data) {
+    // Сообщение скопировано в общий буфер один раз,
+    // каждому клиенту в очередь встает только View (своя позиция) -
+    // стоимость рассылки зависит от числа получателей, но не от размера сообщения.
+    // Буфер вернется в пул, когда его допишет последний получатель
+    private void broadcast(SharedBuffer message) {
 
         try {
 
@@ -403,14 +406,7 @@ public class NioChatServerExample implements Runnable {
                 SelectionKey key = entry.getValue().getKey();
 
                 if (key.isValid()) {
-
-
-                    ByteBuffer tmp = ByteBuffer.allocate(data.limit());
-                    data.rewind();
-                    LibUtil.copyBuffer(data,tmp);
-
-
-                    writeChannel(key, tmp);
+                    writeChannel(key, message.view());
                 }
             }
 
@@ -419,6 +415,10 @@ public class NioChatServerExample implements Runnable {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        finally {
+            // ссылка рассылающего
+            message.release();
+        }
     }
 
 
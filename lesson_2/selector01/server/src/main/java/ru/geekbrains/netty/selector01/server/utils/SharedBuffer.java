@@ -0,0 +1,128 @@
+package ru.geekbrains.netty.selector01.server.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Сообщение для рассылки многим клиентам.
+ * <br>
+ * Байты кодируются один раз, каждому получателю в очередь встает только View -
+ * своя позиция поверх общих (read-only) байт.
+ * Счетчик ссылок: +1 на каждого получателя, буфер возвращается в пул,
+ * когда последний получатель дописал сообщение в сокет (или отключился)
+ */
+public class SharedBuffer {
+
+    // Сообщения не длиннее - в буферах из пула, длиннее - в отдельно выделенных
+    private static final int POOLED_SIZE = 4096;
+    // Больше стольких свободных буферов в пуле не держим
+    private static final int POOL_LIMIT = 1024;
+
+    private static final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private final ByteBuffer buffer;
+    // ссылка создателя + по одной на каждый View
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+
+
+    private SharedBuffer(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+
+    /**
+     * Скопировать сообщение в буфер из пула.
+     * Создатель держит одну ссылку - после раздачи View ее нужно отпустить (release())
+     */
+    public static SharedBuffer wrap(byte[] data) {
+
+        ByteBuffer buffer = data.length <= POOLED_SIZE ? acquire() : ByteBuffer.allocateDirect(data.length);
+
+        buffer.put(data);
+        buffer.flip();
+
+        return new SharedBuffer(buffer);
+    }
+
+
+    /**
+     * Представление для одного получателя (своя позиция, байты общие)
+     */
+    public View view() {
+
+        refCnt.incrementAndGet();
+        return new View(this, buffer.asReadOnlyBuffer());
+    }
+
+
+    public void release() {
+
+        int refs = refCnt.decrementAndGet();
+
+        if (refs == 0) {
+            recycle(buffer);
+        }
+        else if (refs < 0) {
+            throw new IllegalStateException("SharedBuffer released too many times");
+        }
+    }
+
+
+    private static ByteBuffer acquire() {
+
+        ByteBuffer buffer = pool.poll();
+
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(POOLED_SIZE);
+        }
+
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+
+    private static void recycle(ByteBuffer buffer) {
+
+        if (buffer.capacity() == POOLED_SIZE &&
+            pooled.incrementAndGet() <= POOL_LIMIT) {
+
+            pool.offer(buffer);
+        }
+        else if (buffer.capacity() == POOLED_SIZE) {
+            pooled.decrementAndGet();
+        }
+    }
+
+
+    /**
+     * Сообщение в очереди одного получателя
+     */
+    public static class View {
+
+        private final SharedBuffer owner;
+        private final ByteBuffer data;
+
+        private View(SharedBuffer owner, ByteBuffer data) {
+            this.owner = owner;
+            this.data = data;
+        }
+
+        /**
+         * Непереданная часть сообщения (позиция - только этого получателя)
+         */
+        public ByteBuffer getData() {
+            return data;
+        }
+
+        /**
+         * Получатель дописал сообщение (или отключился) - вызывать ровно один раз
+         */
+        public void release() {
+            owner.release();
+        }
+    }
+}
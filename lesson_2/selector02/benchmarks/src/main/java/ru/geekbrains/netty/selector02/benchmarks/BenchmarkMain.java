@@ -0,0 +1,30 @@
+package ru.geekbrains.netty.selector02.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Запуск JMH с теми же аргументами командной строки, что и org.openjdk.jmh.Main,
+ * но всегда с профайлером gc (gc.alloc.rate.norm - байт на операцию):
+ * мусор на горячем пути виден в каждом прогоне
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+
+        CommandLineOptions cmd = new CommandLineOptions(args);
+
+        if (cmd.shouldHelp() || cmd.shouldList() || cmd.shouldListProfilers() || cmd.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        new Runner(new OptionsBuilder()
+                .parent(cmd)
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+}
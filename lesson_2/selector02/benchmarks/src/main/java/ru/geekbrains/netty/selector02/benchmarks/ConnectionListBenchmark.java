@@ -0,0 +1,129 @@
+package ru.geekbrains.netty.selector02.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.geekbrains.netty.selector02.server.entities.Connection;
+import ru.geekbrains.netty.selector02.server.entities.ConnectionList;
+import ru.geekbrains.netty.selector02.server.entities.TimingWheel;
+import ru.geekbrains.netty.selector02.server.metrics.ServerMetrics;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Реестр соединений реактора и таймеры простоя на 1k / 100k / 1M соединений.
+ * <br>
+ * addRemove  - закрытие соединения и прием нового (слот переиспользуется)
+ * touch      - активность клиента (бывший update: таймер не трогается, пишется только время)
+ * idleCheck  - тик таймеров простоя (бывший removeRotten, теперь TimingWheel.advance):
+ *              часы идут на тик за вызов, таймаут - один тик, так что на каждом тике протухают
+ *              все count соединений (закрытие и прием нового клиента на их место) -
+ *              время одного вызова, на соединение - делить на count
+ * lookup     - поиск соединения по id
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ConnectionListBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int count;
+
+    private static final int WHEEL_SIZE = 512;
+    private static final long TICK = TimeUnit.SECONDS.toNanos(1);
+    // addRemove/touch таймаут не важен, idleCheck - каждый тик протухает все (см. выше)
+    private static final long TIMEOUT = TICK;
+
+    private SocketChannel channel;
+    private ConnectionList connectionList;
+    private TimingWheel idleTimers;
+    private Connection[] connections;
+
+    private int next;
+
+    // часы idleCheck (System.nanoTime() + тик на каждый вызов)
+    private long now;
+
+
+    @Setup
+    public void setup() throws IOException {
+
+        // общий (неподключенный) канал на все соединения - Connection нужен только ключ
+        channel = SocketChannel.open();
+
+        connectionList = new ConnectionList(1, 0, new ServerMetrics(null, null));
+        idleTimers = new TimingWheel(WHEEL_SIZE, TICK, TIMEOUT);
+        connections = new Connection[count];
+
+        for (int i = 0; i < count; i++) {
+            connections[i] = connectionList.add(new StubSelectionKey(channel));
+            idleTimers.add(connections[i]);
+        }
+        now = System.nanoTime();
+    }
+
+
+    @TearDown
+    public void tearDown() throws IOException {
+        channel.close();
+    }
+
+
+    @Benchmark
+    public Connection addRemove() {
+
+        int i = next();
+
+        Connection connection = connections[i];
+        idleTimers.cancel(connection);
+        connectionList.remove(connection);
+
+        connection = connectionList.add(connection.getKey());
+        idleTimers.add(connection);
+        connections[i] = connection;
+        return connection;
+    }
+
+
+    @Benchmark
+    public void touch() {
+        connections[next()].touch();
+    }
+
+
+    @Benchmark
+    public int idleCheck() {
+
+        now += TICK;
+        idleTimers.advance(now, this::reconnect);
+        return idleTimers.size();
+    }
+
+
+    @Benchmark
+    public Connection lookup() {
+        return connectionList.get(next());
+    }
+
+
+    /**
+     * Протухшее соединение закрывается, на его место подключается новый клиент
+     * (число соединений не меняется, connections[] в idleCheck не используется)
+     */
+    private void reconnect(Connection connection) {
+
+        connectionList.remove(connection);
+        idleTimers.add(connectionList.add(connection.getKey()));
+    }
+
+
+    private int next() {
+
+        int i = next;
+        next = i + 1 == count ? 0 : i + 1;
+        return i;
+    }
+}
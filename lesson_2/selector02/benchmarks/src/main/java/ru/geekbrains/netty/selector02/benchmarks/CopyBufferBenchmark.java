@@ -0,0 +1,43 @@
+package ru.geekbrains.netty.selector02.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.geekbrains.netty.selector02.server.utils.LibUtil;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LibUtil.copyBuffer: heap -> direct (как сообщения из очереди в буфер записи)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CopyBufferBenchmark {
+
+    @Param({"64", "1024", "65536"})
+    public int size;
+
+    private ByteBuffer src;
+    private ByteBuffer dst;
+
+
+    @Setup
+    public void setup() {
+
+        src = ByteBuffer.allocate(size);
+        dst = ByteBuffer.allocateDirect(size);
+    }
+
+
+    @Benchmark
+    public ByteBuffer copyBuffer() {
+
+        src.clear();
+        dst.clear();
+        LibUtil.copyBuffer(src, dst);
+        return dst;
+    }
+}
@@ -0,0 +1,109 @@
+package ru.geekbrains.netty.selector02.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.geekbrains.netty.selector02.server.FubarServer;
+import ru.geekbrains.netty.selector02.server.entities.Connection;
+import ru.geekbrains.netty.selector02.server.metrics.ServerMetrics;
+import ru.geekbrains.netty.selector02.server.protocol.Frame;
+import ru.geekbrains.netty.selector02.server.protocol.FrameDecoder;
+import ru.geekbrains.netty.selector02.server.protocol.LineDecoder;
+import ru.geekbrains.netty.selector02.server.utils.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор прочитанного из сокета (handleRead -> processInput / readFrames) без сокета:
+ * один буфер чтения с пачкой команд, как его видит реактор.
+ * <br>
+ * text   - LineDecoder: строки, проверка на команду по байтам и эхо-ответ "id: строка\n"
+ *          (те же FubarServer.isEcho / echo, что вызывает Reactor.processInput)
+ * binary - FrameDecoder: кадры COMMAND
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+    // команд в одном буфере чтения
+    @Param({"1", "16", "256"})
+    public int batch;
+
+    private final BufferPool pool = new BufferPool();
+    private final LineDecoder lineDecoder = new LineDecoder(pool);
+    private final FrameDecoder frameDecoder = new FrameDecoder();
+    private final List<Frame> frames = new ArrayList<>();
+
+    // эхо-ответу нужен только префикс соединения - канал неподключенный
+    private SocketChannel channel;
+    private Connection connection;
+
+    private ByteBuffer textInput;
+    private ByteBuffer binaryInput;
+
+
+    @Setup
+    public void setup() throws IOException {
+
+        channel = SocketChannel.open();
+        connection = new Connection(new StubSelectionKey(channel), 12345, new ServerMetrics(null, null));
+
+        byte[] line = "hello, fubar server\n".getBytes(StandardCharsets.UTF_8);
+        textInput = ByteBuffer.allocateDirect(line.length * batch);
+        for (int i = 0; i < batch; i++) {
+            textInput.put(line);
+        }
+        textInput.flip();
+
+        ByteBuffer frame = Frame.encode(Frame.COMMAND, "hello, fubar server".getBytes(StandardCharsets.UTF_8));
+        binaryInput = ByteBuffer.allocateDirect(frame.remaining() * batch);
+        for (int i = 0; i < batch; i++) {
+            binaryInput.put(frame.duplicate());
+        }
+        binaryInput.flip();
+    }
+
+
+    @TearDown
+    public void tearDown() throws IOException {
+        channel.close();
+    }
+
+
+    @Benchmark
+    public int text() {
+
+        textInput.rewind();
+        lineDecoder.append(textInput);
+
+        int replied = 0;
+        while (lineDecoder.nextLine()) {
+
+            if (lineDecoder.lineLength() == 0 || !FubarServer.isEcho(lineDecoder)) {
+                continue;
+            }
+            replied += FubarServer.echo(connection, lineDecoder).remaining();
+        }
+
+        lineDecoder.retain();
+        return replied;
+    }
+
+
+    @Benchmark
+    public int binary() throws IOException {
+
+        binaryInput.rewind();
+        frames.clear();
+        frameDecoder.decode(binaryInput, frames);
+        return frames.size();
+    }
+}
@@ -0,0 +1,73 @@
+package ru.geekbrains.netty.selector02.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.geekbrains.netty.selector02.server.entities.DirectoryListing;
+import ru.geekbrains.netty.selector02.server.serverActions.DirectoryCache;
+import ru.geekbrains.netty.selector02.server.serverActions.DirectoryReader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * LIST: DirectoryReader на больших каталогах и повторный LIST из DirectoryCache
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DirectoryReaderBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    public int files;
+
+    private Path dir;
+    private DirectoryReader reader;
+    private DirectoryCache cache;
+
+
+    @Setup
+    public void setup() throws IOException {
+
+        dir = Files.createTempDirectory("fubar-list");
+        for (int i = 0; i < files; i++) {
+            Files.createFile(dir.resolve(String.format("file-%08d.bin", i)));
+        }
+        reader = new DirectoryReader();
+        cache = new DirectoryCache();
+    }
+
+
+    @TearDown
+    public void tearDown() throws IOException {
+
+        try (Stream<Path> stream = Files.list(dir)) {
+            for (Path path : (Iterable<Path>) stream::iterator) {
+                Files.delete(path);
+            }
+        }
+        Files.delete(dir);
+    }
+
+
+    @Benchmark
+    public String list() {
+        return reader.apply(dir.toString());
+    }
+
+
+    /**
+     * Каталог не меняется - из кэша, клиенту уходит только duplicate() готовых байт
+     */
+    @Benchmark
+    public ByteBuffer cachedList() {
+
+        DirectoryListing listing = cache.get(dir.toString());
+        return listing.payload(false);
+    }
+}
@@ -0,0 +1,50 @@
+package ru.geekbrains.netty.selector02.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.geekbrains.netty.selector02.server.entities.jobpool.AsyncJobPool;
+import ru.geekbrains.netty.selector02.server.entities.jobpool.BlockingJobPool;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Пропускная способность постановки задач в пулы (задача пустая - меряется только диспетчеризация).
+ * BlockingJobPool в add() ждет свободный поток, AsyncJobPool - нет (потоков сколько угодно).
+ * Потоки пулов - демоны, останавливать не нужно (форк JMH завершится сам)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JobPoolBenchmark {
+
+    private static final Supplier<Void> JOB = () -> null;
+
+    private final LongAdder done = new LongAdder();
+
+    private BlockingJobPool<Void> blockingPool;
+    private AsyncJobPool<Void> asyncPool;
+
+
+    @Setup
+    public void setup() {
+
+        blockingPool = new BlockingJobPool<>(4, v -> done.increment());
+        asyncPool = new AsyncJobPool<>(v -> done.increment());
+    }
+
+
+    @Benchmark
+    public void blockingAdd() {
+        blockingPool.add(JOB);
+    }
+
+
+    @Benchmark
+    public void asyncAdd() {
+        asyncPool.add(JOB);
+    }
+}
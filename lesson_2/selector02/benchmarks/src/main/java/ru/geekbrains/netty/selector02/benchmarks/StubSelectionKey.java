@@ -0,0 +1,46 @@
+package ru.geekbrains.netty.selector02.benchmarks;
+
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.AbstractSelectionKey;
+
+/**
+ * Ключ без селектора - чтобы создавать Connection без настоящих сокетов
+ */
+class StubSelectionKey extends AbstractSelectionKey {
+
+    private final SelectableChannel channel;
+    private int interestOps;
+
+
+    StubSelectionKey(SelectableChannel channel) {
+        this.channel = channel;
+    }
+
+
+    @Override
+    public SelectableChannel channel() {
+        return channel;
+    }
+
+    @Override
+    public Selector selector() {
+        return null;
+    }
+
+    @Override
+    public int interestOps() {
+        return interestOps;
+    }
+
+    @Override
+    public StubSelectionKey interestOps(int ops) {
+        interestOps = ops;
+        return this;
+    }
+
+    @Override
+    public int readyOps() {
+        return 0;
+    }
+}
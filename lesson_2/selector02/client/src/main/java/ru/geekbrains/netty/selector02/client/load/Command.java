@@ -0,0 +1,12 @@
+package ru.geekbrains.netty.selector02.client.load;
+
+/**
+ * Команды, которыми генератор нагружает сервер
+ */
+public enum Command {
+
+    ECHO,
+    LIST,
+    GET,
+    PUT
+}
@@ -0,0 +1,84 @@
+package ru.geekbrains.netty.selector02.client.load;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Смесь команд с весами, например "echo:90,list:5,get:4,put:1"
+ */
+public class CommandMix {
+
+    private final Command[] commands;
+    // накопленные веса
+    private final int[] bounds;
+    private final int total;
+
+
+    public CommandMix(String spec) {
+
+        Map<Command, Integer> weights = new EnumMap<>(Command.class);
+
+        for (String part : spec.split(",")) {
+
+            String[] kv = part.trim().split(":");
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("bad command mix: " + spec);
+            }
+
+            int weight = Integer.parseInt(kv[1].trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException("bad command mix: " + spec);
+            }
+            if (weight > 0) {
+                weights.put(Command.valueOf(kv[0].trim().toUpperCase()), weight);
+            }
+        }
+
+        if (weights.isEmpty()) {
+            throw new IllegalArgumentException("empty command mix: " + spec);
+        }
+
+        commands = new Command[weights.size()];
+        bounds = new int[weights.size()];
+
+        int i = 0;
+        int sum = 0;
+        for (Map.Entry<Command, Integer> e : weights.entrySet()) {
+            sum += e.getValue();
+            commands[i] = e.getKey();
+            bounds[i] = sum;
+            i++;
+        }
+        total = sum;
+    }
+
+
+    public Command next() {
+
+        int r = ThreadLocalRandom.current().nextInt(total);
+
+        for (int i = 0; i < bounds.length; i++) {
+            if (r < bounds[i]) {
+                return commands[i];
+            }
+        }
+        return commands[commands.length - 1];
+    }
+
+
+    @Override
+    public String toString() {
+
+        StringBuilder sb = new StringBuilder();
+        int prev = 0;
+        for (int i = 0; i < commands.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(commands[i].name().toLowerCase()).append(':').append(bounds[i] - prev);
+            prev = bounds[i];
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,448 @@
+package ru.geekbrains.netty.selector02.client.load;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * Одно соединение генератора нагрузки.
+ * <br>
+ * После приветствия сервера переходит на двоичный протокол ("binary") - у ответов есть границы.
+ * Кадр: [int32 length][byte opcode][payload], length = 1 + длина payload (см. server protocol.Frame).
+ * <br>
+ * Ответы приходят в порядке запросов, поэтому отправленные запросы - просто очередь (inflight),
+ * не больше pipeline штук одновременно, остальные ждут в pending.
+ * Кадры разбираются потоково, payload не копируется (кроме начала ответа "OK size" на GET) -
+ * буфер чтения один на весь генератор
+ */
+class LoadConnection {
+
+    enum State {CONNECTING, WELCOME, SWITCHING, READY, CLOSED}
+
+    // opcodes (как в server protocol.Frame)
+    private static final byte COMMAND = 1;
+    private static final byte RESPONSE = 2;
+    private static final byte ERROR = 3;
+    private static final byte DATA = 4;
+    private static final byte EVENT = 5;
+
+    private static final int HEADER_SIZE = 5;
+    // PUT: файл уходит DATA-кадрами не больше этого
+    private static final int MAX_CHUNK = 64 * 1024;
+    // сколько байт ответа сохранять (хватает на "OK <size>")
+    private static final int PREFIX_SIZE = 64;
+
+    private static final byte[] SWITCH_TO_BINARY = "binary\n".getBytes(StandardCharsets.UTF_8);
+
+    private final int index;
+    private final LoadGenerator generator;
+    private final byte[] putCommand;
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private State state = State.CONNECTING;
+
+    private final ArrayDeque<Request> pending = new ArrayDeque<>();
+    private final ArrayDeque<Request> inflight = new ArrayDeque<>();
+
+    // исходящие данные (режим заполнения: position - конец данных)
+    private ByteBuffer out = ByteBuffer.allocate(1024);
+
+    // разбор кадров
+    private final byte[] header = new byte[HEADER_SIZE];
+    private int headerLength;
+    private byte opcode;
+    private int payloadRemaining;
+    private final byte[] prefix = new byte[PREFIX_SIZE];
+    private int prefixLength;
+
+
+    LoadConnection(int index, LoadGenerator generator) {
+
+        this.index = index;
+        this.generator = generator;
+        this.putCommand = ("put load-" + index + ".tmp " + generator.getPutSize()).getBytes(StandardCharsets.UTF_8);
+    }
+
+
+    int getIndex() {
+        return index;
+    }
+
+    State getState() {
+        return state;
+    }
+
+    int getOutstanding() {
+        return pending.size() + inflight.size();
+    }
+
+
+    void connect(Selector selector, InetSocketAddress address) throws IOException {
+
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+        key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+
+        if (channel.connect(address)) {
+            finishConnect();
+        }
+    }
+
+
+    void finishConnect() throws IOException {
+
+        if (channel.finishConnect()) {
+            state = State.WELCOME;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+
+    /**
+     * Поставить запрос (уйдет, как только в соединении освободится место, см. pipeline)
+     */
+    void submit(Request request) throws IOException {
+
+        pending.add(request);
+        send();
+    }
+
+
+    /**
+     * Прочитать все, что есть в сокете
+     * @param buffer общий буфер чтения
+     */
+    void read(ByteBuffer buffer) throws IOException {
+
+        int read;
+        do {
+            buffer.clear();
+            read = channel.read(buffer);
+
+            if (read < 0) {
+                close();
+                return;
+            }
+
+            buffer.flip();
+            consume(buffer);
+        }
+        while (read > 0 && state != State.CLOSED);
+    }
+
+
+    /**
+     * Дописать в сокет то, что не влезло в прошлый раз
+     */
+    void flush() throws IOException {
+
+        if (out.position() > 0) {
+            out.flip();
+            channel.write(out);
+            out.compact();
+        }
+
+        int ops = out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+
+    /**
+     * Закрыть соединение - все его незавершенные запросы считаются ошибками
+     */
+    void close() {
+
+        if (state == State.CLOSED) {
+            return;
+        }
+        State was = state;
+        state = State.CLOSED;
+
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+
+        int lost = pending.size() + inflight.size();
+        pending.clear();
+        inflight.clear();
+
+        generator.closed(this, was, lost);
+    }
+
+
+    // ----------------------------------------------------------------------------------------------------
+
+
+    private void consume(ByteBuffer in) throws IOException {
+
+        // приветствие и подтверждение "OK binary" - текстом, по строке
+        while (state == State.WELCOME || state == State.SWITCHING) {
+
+            if (!skipLine(in)) {
+                return;
+            }
+
+            if (state == State.WELCOME) {
+                put(SWITCH_TO_BINARY, 0, SWITCH_TO_BINARY.length);
+                flush();
+                state = State.SWITCHING;
+            }
+            else {
+                state = State.READY;
+                generator.ready(this);
+                send();
+            }
+        }
+
+        if (state == State.READY) {
+            parseFrames(in);
+        }
+    }
+
+
+    private boolean skipLine(ByteBuffer in) {
+
+        while (in.hasRemaining()) {
+            if (in.get() == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private void parseFrames(ByteBuffer in) throws IOException {
+
+        while (in.hasRemaining() && state == State.READY) {
+
+            if (headerLength < HEADER_SIZE) {
+
+                header[headerLength++] = in.get();
+
+                if (headerLength == HEADER_SIZE) {
+
+                    int length = (header[0] & 0xFF) << 24 | (header[1] & 0xFF) << 16 |
+                                 (header[2] & 0xFF) << 8 | (header[3] & 0xFF);
+
+                    if (length < 1) {
+                        close();
+                        return;
+                    }
+
+                    opcode = header[4];
+                    payloadRemaining = length - 1;
+                    prefixLength = 0;
+
+                    if (payloadRemaining == 0) {
+                        frameDone();
+                    }
+                }
+                continue;
+            }
+
+            int count = Math.min(in.remaining(), payloadRemaining);
+
+            if (opcode == RESPONSE || opcode == ERROR) {
+                int copy = Math.min(count, PREFIX_SIZE - prefixLength);
+                in.get(prefix, prefixLength, copy);
+                prefixLength += copy;
+                in.position(in.position() + count - copy);
+            }
+            else {
+                in.position(in.position() + count);
+            }
+
+            payloadRemaining -= count;
+
+            if (opcode == DATA) {
+                onData(count);
+            }
+
+            if (payloadRemaining == 0) {
+                frameDone();
+            }
+        }
+    }
+
+
+    private void frameDone() throws IOException {
+
+        headerLength = 0;
+
+        switch (opcode) {
+
+            case RESPONSE:
+                onResponse(true);
+                break;
+
+            case ERROR:
+                onResponse(false);
+                break;
+
+            case DATA:
+            case EVENT:
+                break;
+
+            default:
+                close();
+        }
+    }
+
+
+    private void onResponse(boolean ok) throws IOException {
+
+        Request request = inflight.peek();
+        if (request == null) {
+            return;
+        }
+
+        // GET: сначала "OK <size>", потом size байт DATA-кадрами
+        if (ok && request.command == Command.GET) {
+
+            request.expected = parseSize();
+            if (request.expected > 0) {
+                return;
+            }
+            ok = request.expected == 0;
+        }
+
+        complete(ok);
+    }
+
+
+    private void onData(int count) throws IOException {
+
+        Request request = inflight.peek();
+
+        if (request != null && request.command == Command.GET && request.expected > 0) {
+
+            request.expected -= count;
+            if (request.expected <= 0) {
+                complete(true);
+            }
+        }
+    }
+
+
+    private void complete(boolean ok) throws IOException {
+
+        Request request = inflight.poll();
+        generator.completed(request, ok, System.nanoTime());
+        send();
+    }
+
+
+    /**
+     * Размер из ответа "OK &lt;size&gt;", -2 - ответ не такой
+     */
+    private long parseSize() {
+
+        String res = new String(prefix, 0, prefixLength, StandardCharsets.UTF_8).trim();
+        String[] args = res.split("\\s+");
+
+        try {
+            return args.length >= 2 && args[0].equals("OK") ? Long.parseLong(args[1]) : -2;
+        }
+        catch (NumberFormatException e) {
+            return -2;
+        }
+    }
+
+
+    private void send() throws IOException {
+
+        if (state != State.READY) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        boolean added = false;
+
+        while (!pending.isEmpty() && inflight.size() < generator.getPipeline()) {
+
+            Request request = pending.poll();
+            encode(request);
+            request.sent = now;
+            inflight.add(request);
+            added = true;
+        }
+
+        if (added) {
+            flush();
+        }
+    }
+
+
+    private void encode(Request request) {
+
+        switch (request.command) {
+
+            case ECHO:
+                putFrame(COMMAND, generator.getEchoCommand(), 0, generator.getEchoCommand().length);
+                break;
+
+            case LIST:
+                putFrame(COMMAND, generator.getListCommand(), 0, generator.getListCommand().length);
+                break;
+
+            case GET:
+                putFrame(COMMAND, generator.getGetCommand(), 0, generator.getGetCommand().length);
+                break;
+
+            case PUT:
+                putFrame(COMMAND, putCommand, 0, putCommand.length);
+
+                byte[] data = generator.getPutData();
+                for (int position = 0; position < data.length; position += MAX_CHUNK) {
+                    putFrame(DATA, data, position, Math.min(MAX_CHUNK, data.length - position));
+                }
+                break;
+        }
+    }
+
+
+    private void putFrame(byte opcode, byte[] payload, int offset, int length) {
+
+        ensureCapacity(HEADER_SIZE + length);
+        out.putInt(1 + length);
+        out.put(opcode);
+        out.put(payload, offset, length);
+    }
+
+
+    private void put(byte[] data, int offset, int length) {
+
+        ensureCapacity(length);
+        out.put(data, offset, length);
+    }
+
+
+    private void ensureCapacity(int count) {
+
+        if (out.remaining() >= count) {
+            return;
+        }
+
+        int capacity = out.capacity();
+        while (capacity - out.position() < count) {
+            capacity *= 2;
+        }
+
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        out.flip();
+        bigger.put(out);
+        out = bigger;
+    }
+}
@@ -0,0 +1,432 @@
+package ru.geekbrains.netty.selector02.client.load;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Генератор нагрузки на FubarServer.
+ * <br>
+ * Один поток, один Selector на все соединения.
+ * Запросы идут с постоянной частотой (open model): k-й запрос должен уйти в start + k / rate,
+ * независимо от того, успевает ли сервер отвечать. Задержка считается от этого момента (corrected),
+ * а не от фактической отправки (uncorrected) - иначе, пока сервер тормозит, генератор
+ * просто не отправляет запросы, и медленные ответы в статистику не попадают (coordinated omission).
+ * <br>
+ * Настройки (-D):
+ * <pre>
+ * load.host        127.0.0.1
+ * load.port        8000
+ * load.connections 100
+ * load.rate        1000               запросов в секунду, на все соединения
+ * load.duration    30                 секунд замера
+ * load.warmup      5                  секунд прогрева (не учитываются)
+ * load.pipeline    1                  запросов в полете на соединение
+ * load.mix         echo:90,list:5,get:5  (echo, list, get, put с весами)
+ * load.getFile     a.txt              что качать GET
+ * load.putSize     4096               сколько байт отправлять PUT (файлы load-N.tmp в data сервера)
+ * </pre>
+ * mvn -q -pl client exec:java -Dexec.mainClass=ru.geekbrains.netty.selector02.client.load.LoadGenerator -Dload.rate=5000
+ * <br>
+ * Тысячи соединений - не забыть ulimit -n. При интервале между запросами меньше миллисекунды
+ * генератор крутится без сна (selectNow) и занимает ядро целиком
+ */
+public class LoadGenerator {
+
+    private static final String HOST = System.getProperty("load.host", "127.0.0.1");
+    private static final int PORT = Integer.getInteger("load.port", 8000);
+    private static final int CONNECTIONS = Integer.getInteger("load.connections", 100);
+    private static final int RATE = Integer.getInteger("load.rate", 1000);
+    private static final int DURATION = Integer.getInteger("load.duration", 30);
+    private static final int WARMUP = Integer.getInteger("load.warmup", 5);
+    private static final int PIPELINE = Math.max(1, Integer.getInteger("load.pipeline", 1));
+    private static final String MIX = System.getProperty("load.mix", "echo:90,list:5,get:5");
+    private static final String GET_FILE = System.getProperty("load.getFile", "a.txt");
+    private static final int PUT_SIZE = Integer.getInteger("load.putSize", 4096);
+
+    // не больше стольких соединений устанавливается одновременно (backlog сервера - 50)
+    private static final int MAX_CONNECTING = 32;
+    private static final long CONNECT_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+    // сколько ждать ответы на уже отправленные запросы после окончания замера
+    private static final long DRAIN_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+
+    private static final long REPORT_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    // задержки - в микросекундах, до 10 минут, 3 значащие цифры
+    private static final long HIGHEST_LATENCY = TimeUnit.MINUTES.toMicros(10);
+
+    private final PrintStream console = System.out;
+
+    private final CommandMix mix = new CommandMix(MIX);
+
+    private final byte[] echoCommand = "load test message".getBytes(StandardCharsets.UTF_8);
+    private final byte[] listCommand = "list".getBytes(StandardCharsets.UTF_8);
+    private final byte[] getCommand = ("get " + GET_FILE).getBytes(StandardCharsets.UTF_8);
+    private final byte[] putData = new byte[PUT_SIZE];
+
+    private Selector selector;
+    // общий буфер чтения на все соединения
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+    // соединения, готовые принимать запросы (round-robin)
+    private final LoadConnection[] ready = new LoadConnection[CONNECTIONS];
+    private int readyCount;
+    private int nextConnection;
+    private int connectFailures;
+
+    // начало замера (запросы, которые по расписанию раньше - прогрев)
+    private long measureStart = Long.MAX_VALUE;
+
+    private long scheduled;
+    private long outstanding;
+    private long completed;
+    private long errors;
+
+    private final Histogram corrected = new Histogram(HIGHEST_LATENCY, 3);
+    private final Histogram uncorrected = new Histogram(HIGHEST_LATENCY, 3);
+    private final Histogram interval = new Histogram(HIGHEST_LATENCY, 3);
+    private final Map<Command, Histogram> byCommand = new EnumMap<>(Command.class);
+
+    private long intervalCompleted;
+    private long intervalErrors;
+
+
+    public static void main(String[] args) throws IOException {
+        new LoadGenerator().run();
+    }
+
+
+    public void run() throws IOException {
+
+        for (Command command : Command.values()) {
+            byCommand.put(command, new Histogram(HIGHEST_LATENCY, 3));
+        }
+
+        selector = Selector.open();
+
+        console.printf("FubarServer %s:%d  connections %d  rate %d/s  duration %ds (+%ds warmup)  pipeline %d  mix %s%n",
+                       HOST, PORT, CONNECTIONS, RATE, DURATION, WARMUP, PIPELINE, mix);
+
+        connectAll();
+
+        if (readyCount == 0) {
+            console.println("No connections");
+            return;
+        }
+        console.printf("Connected: %d, failed: %d%n", readyCount, connectFailures);
+
+        generate();
+        drain();
+        report();
+
+        selector.close();
+    }
+
+
+    // ----------------------------------------------------------------------------------------------------
+    // Вызывается соединениями
+
+    int getPipeline() {
+        return PIPELINE;
+    }
+
+    int getPutSize() {
+        return PUT_SIZE;
+    }
+
+    byte[] getPutData() {
+        return putData;
+    }
+
+    byte[] getEchoCommand() {
+        return echoCommand;
+    }
+
+    byte[] getListCommand() {
+        return listCommand;
+    }
+
+    byte[] getGetCommand() {
+        return getCommand;
+    }
+
+
+    /**
+     * Соединение перешло на двоичный протокол
+     */
+    void ready(LoadConnection connection) {
+        ready[readyCount++] = connection;
+    }
+
+
+    /**
+     * Ответ на запрос получен целиком
+     */
+    void completed(Request request, boolean ok, long now) {
+
+        outstanding--;
+
+        if (request.intended < measureStart) {
+            return;
+        }
+
+        if (!ok) {
+            errors++;
+            intervalErrors++;
+            return;
+        }
+
+        long latency = Math.min(TimeUnit.NANOSECONDS.toMicros(now - request.intended), HIGHEST_LATENCY);
+
+        corrected.recordValue(latency);
+        interval.recordValue(latency);
+        byCommand.get(request.command).recordValue(latency);
+        uncorrected.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(now - request.sent), HIGHEST_LATENCY));
+
+        completed++;
+        intervalCompleted++;
+    }
+
+
+    /**
+     * Соединение закрылось, lost запросов так и остались без ответа
+     */
+    void closed(LoadConnection connection, LoadConnection.State state, int lost) {
+
+        if (state != LoadConnection.State.READY) {
+            connectFailures++;
+            return;
+        }
+
+        for (int i = 0; i < readyCount; i++) {
+            if (ready[i] == connection) {
+                ready[i] = ready[--readyCount];
+                ready[readyCount] = null;
+                break;
+            }
+        }
+
+        outstanding -= lost;
+        errors += lost;
+        intervalErrors += lost;
+    }
+
+
+    // ----------------------------------------------------------------------------------------------------
+
+
+    private void connectAll() throws IOException {
+
+        InetSocketAddress address = new InetSocketAddress(HOST, PORT);
+        long deadline = System.nanoTime() + CONNECT_TIMEOUT;
+        int opened = 0;
+
+        while (readyCount + connectFailures < CONNECTIONS && System.nanoTime() < deadline) {
+
+            while (opened < CONNECTIONS && opened - readyCount - connectFailures < MAX_CONNECTING) {
+
+                LoadConnection connection = new LoadConnection(opened++, this);
+                try {
+                    connection.connect(selector, address);
+                }
+                catch (IOException e) {
+                    connectFailures++;
+                }
+            }
+
+            selector.select(100);
+            processKeys();
+        }
+    }
+
+
+    /**
+     * Запросы по расписанию до конца замера
+     */
+    private void generate() throws IOException {
+
+        double period = 1e9 / RATE;
+
+        long start = System.nanoTime();
+        measureStart = start + TimeUnit.SECONDS.toNanos(WARMUP);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(DURATION);
+        long nextReport = start + REPORT_INTERVAL;
+
+        long k = 0;
+        long next = start;
+
+        while (readyCount > 0) {
+
+            long now = System.nanoTime();
+            if (now >= end) {
+                break;
+            }
+
+            // все, что по расписанию уже пора отправить (в том числе то, что генератор проспал)
+            while (next <= now && next < end) {
+
+                dispatch(new Request(mix.next(), next));
+                next = start + (long)(++k * period);
+            }
+
+            if (now >= nextReport) {
+                reportInterval(now - start);
+                nextReport += REPORT_INTERVAL;
+            }
+
+            long wait = Math.min(Math.min(next, nextReport), end) - System.nanoTime();
+            if (wait >= TimeUnit.MILLISECONDS.toNanos(1)) {
+                selector.select(TimeUnit.NANOSECONDS.toMillis(wait));
+            }
+            else {
+                selector.selectNow();
+            }
+            processKeys();
+        }
+    }
+
+
+    /**
+     * Дождаться ответов на отправленные запросы
+     */
+    private void drain() throws IOException {
+
+        long deadline = System.nanoTime() + DRAIN_TIMEOUT;
+
+        while (outstanding > 0 && readyCount > 0 && System.nanoTime() < deadline) {
+            selector.select(100);
+            processKeys();
+        }
+    }
+
+
+    private void dispatch(Request request) throws IOException {
+
+        scheduled++;
+
+        if (readyCount == 0) {
+            if (request.intended >= measureStart) {
+                errors++;
+            }
+            return;
+        }
+
+        outstanding++;
+
+        if (nextConnection >= readyCount) {
+            nextConnection = 0;
+        }
+        LoadConnection connection = ready[nextConnection++];
+
+        try {
+            connection.submit(request);
+        }
+        catch (IOException e) {
+            connection.close();
+        }
+    }
+
+
+    private void processKeys() {
+
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+        while (it.hasNext()) {
+
+            SelectionKey key = it.next();
+            it.remove();
+
+            LoadConnection connection = (LoadConnection) key.attachment();
+
+            try {
+                if (key.isValid() && key.isConnectable()) {
+                    connection.finishConnect();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    connection.read(readBuffer);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.flush();
+                }
+            }
+            catch (IOException e) {
+                connection.close();
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------------------------------------------------
+
+
+    private void reportInterval(long elapsed) {
+
+        console.printf("%4ds %s  done %7d  errors %5d  in flight %6d  p50 %8.3f  p99 %8.3f  max %8.3f ms%n",
+                       TimeUnit.NANOSECONDS.toSeconds(elapsed),
+                       elapsed < TimeUnit.SECONDS.toNanos(WARMUP) + REPORT_INTERVAL ? "warmup" : "      ",
+                       intervalCompleted, intervalErrors, outstanding,
+                       millis(interval.getValueAtPercentile(50)),
+                       millis(interval.getValueAtPercentile(99)),
+                       millis(interval.getMaxValue()));
+
+        interval.reset();
+        intervalCompleted = 0;
+        intervalErrors = 0;
+    }
+
+
+    private void report() {
+
+        long measured = TimeUnit.SECONDS.toNanos(DURATION);
+        double throughput = completed * 1e9 / measured;
+
+        console.println();
+        console.printf("Requests: %d scheduled, %d completed, %d errors, %d unanswered%n",
+                       scheduled, completed, errors, outstanding);
+        console.printf("Throughput: %.1f req/s (target %d req/s)%n", throughput, RATE);
+
+        if (throughput < RATE * 0.95) {
+            console.println("WARNING: server did not keep up with the target rate - see corrected latency");
+        }
+
+        console.println();
+        console.printf("%-22s %10s %10s %10s %10s %10s %10s %10s%n",
+                       "latency, ms", "count", "p50", "p90", "p99", "p99.9", "p99.99", "max");
+
+        printLatency("corrected", corrected);
+        printLatency("uncorrected", uncorrected);
+
+        for (Map.Entry<Command, Histogram> e : byCommand.entrySet()) {
+            if (e.getValue().getTotalCount() > 0) {
+                printLatency("  " + e.getKey().name().toLowerCase(), e.getValue());
+            }
+        }
+    }
+
+
+    private void printLatency(String name, Histogram h) {
+
+        console.printf("%-22s %10d %10.3f %10.3f %10.3f %10.3f %10.3f %10.3f%n",
+                       name, h.getTotalCount(),
+                       millis(h.getValueAtPercentile(50)),
+                       millis(h.getValueAtPercentile(90)),
+                       millis(h.getValueAtPercentile(99)),
+                       millis(h.getValueAtPercentile(99.9)),
+                       millis(h.getValueAtPercentile(99.99)),
+                       millis(h.getMaxValue()));
+    }
+
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+}
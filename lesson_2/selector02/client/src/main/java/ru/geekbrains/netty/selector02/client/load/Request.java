@@ -0,0 +1,25 @@
+package ru.geekbrains.netty.selector02.client.load;
+
+/**
+ * Один запрос к серверу
+ */
+class Request {
+
+    final Command command;
+
+    // когда запрос должен был уйти по расписанию (от этого момента считается задержка -
+    // если генератор или соединение не успели, ожидание тоже входит в задержку)
+    final long intended;
+
+    // когда запрос на самом деле записан в буфер соединения
+    long sent;
+
+    // GET: сколько байт файла еще должно прийти (-1 - ответ "OK size" еще не пришел)
+    long expected = -1;
+
+
+    Request(Command command, long intended) {
+        this.command = command;
+        this.intended = intended;
+    }
+}
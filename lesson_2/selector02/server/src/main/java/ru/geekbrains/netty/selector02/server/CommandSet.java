@@ -0,0 +1,379 @@
+package ru.geekbrains.netty.selector02.server;
+
+import ru.geekbrains.netty.selector02.server.entities.AdmissionPolicy;
+import ru.geekbrains.netty.selector02.server.entities.DirectoryListing;
+import ru.geekbrains.netty.selector02.server.entities.ListingStream;
+import ru.geekbrains.netty.selector02.server.entities.RoomMessage;
+import ru.geekbrains.netty.selector02.server.metrics.LatencyHistogram;
+import ru.geekbrains.netty.selector02.server.metrics.ServerMetrics;
+import ru.geekbrains.netty.selector02.server.serverActions.DirectoryCache;
+import ru.geekbrains.netty.selector02.server.serverActions.FileHasher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.Paths;
+
+/**
+ * Команды сервера (общие для всех режимов: реакторы и thread-per-connection).
+ * <br>
+ * Разбор и выполнение команды здесь, а то, что зависит от транспорта
+ * (как передать файл, где живут комнаты, что значит политика допуска) - в наследнике
+ * @param <S> соединение конкретного режима
+ */
+public abstract class CommandSet<S> {
+
+    private static final Logger log = LogManager.getLogger(CommandSet.class);
+
+    public static final String WELCOME = "Fubar Transfer Protocol server приветствует вас.\n";
+
+    // Первые слова команд (в нижнем регистре), все остальное - эхо
+    static final String[] COMMANDS = {"sleep", "list", "get", "hash", "put", "binary", "join", "leave", "say", "stats", "admission"};
+
+    // Команды, для которых считается время выполнения (см. ServerMetrics)
+    static final String[] MEASURED = {"echo", "sleep", "list", "get", "hash", "join", "leave", "say", "stats"};
+
+    // Максимальная длина имени комнаты
+    private static final int MAX_ROOM_NAME = 64;
+
+    private static final String LIST_USAGE = "ERR usage: list [match <glob>] [long] [page <n>] [from <cursor>]\n";
+
+    protected final String dataRoot;
+    protected final ServerMetrics metrics;
+
+    // LIST: каталог читается заново только после изменений
+    private final DirectoryCache directoryCache = new DirectoryCache();
+
+    // HASH: деревья хэшей файлов (считаются один раз на версию файла)
+    private final FileHasher fileHasher;
+
+
+    protected CommandSet(String dataRoot, ServerMetrics metrics) {
+
+        this.dataRoot = dataRoot;
+        this.metrics = metrics;
+        this.fileHasher = new FileHasher(dataRoot);
+    }
+
+
+    /**
+     * Каталог с файлами сервера (LIST, GET, PUT)
+     */
+    static String defaultDataRoot() {
+
+        // Будут проблемы с путями
+        return System.getProperty("user.dir") + "/server/data";  //(? File.separator)
+    }
+
+
+    /**
+     * Команда может надолго занять поток (диск, sleep)
+     */
+    static boolean isBlockingCommand(String msg) {
+
+        return msg.equals("sleep") ||
+               msg.equalsIgnoreCase("list") ||
+               msg.regionMatches(true, 0, "list ", 0, 5) ||
+               msg.regionMatches(true, 0, "get ", 0, 4) ||
+               msg.regionMatches(true, 0, "hash ", 0, 5);
+    }
+
+
+    /**
+     * Гистограмма времени выполнения команды (по первому слову, все остальное - эхо)
+     */
+    LatencyHistogram latencyOf(String msg) {
+
+        for (String command : COMMANDS) {
+
+            if (msg.regionMatches(true, 0, command, 0, command.length()) &&
+                (msg.length() == command.length() || Character.isWhitespace(msg.charAt(command.length())))) {
+
+                return metrics.latency(command);
+            }
+        }
+        return metrics.latency("echo");
+    }
+
+
+    // ----------------------------------------------------------------------------------------------------
+
+
+    /**
+     * id соединения (для эхо и сообщений в комнату)
+     */
+    protected abstract int idOf(S connection);
+
+    /**
+     * GET - отправить файл (или его часть) клиенту
+     * @param length -1 - весь файл
+     * @return null - если файл (с заголовком) уже отправлен или поставлен в очередь, иначе текст ошибки
+     */
+    protected abstract String send(S connection, String name, long offset, long length);
+
+    /**
+     * LIST - отправить закодированный список вместе с "OK END" (общие байты, см. DirectoryListing)
+     */
+    protected abstract void send(S connection, DirectoryListing listing);
+
+    /**
+     * LIST с параметрами, HASH - отправить кусок ответа (текст или кадр) сразу, не дожидаясь конца
+     */
+    protected abstract void send(S connection, ByteBuffer chunk);
+
+    protected abstract boolean isBinary(S connection);
+
+    /**
+     * Клиент успевает забирать ответы (иначе страница LIST заканчивается раньше)
+     */
+    protected abstract boolean isWritable(S connection);
+
+    /**
+     * Открытый постраничный LIST соединения (null - нет)
+     */
+    protected abstract ListingStream getListing(S connection);
+
+    protected abstract void setListing(S connection, ListingStream listing);
+
+    protected abstract void join(S connection, String room);
+
+    protected abstract void leave(S connection, String room);
+
+    /**
+     * Раздать сообщение всем в комнате
+     */
+    protected abstract void say(RoomMessage message);
+
+    /**
+     * @return null - политика принята, иначе текст ошибки
+     */
+    protected abstract String setAdmission(S connection, AdmissionPolicy policy);
+
+
+    // ----------------------------------------------------------------------------------------------------
+
+
+    // command router
+    /**
+     * Выполнить команду
+     * @return ответ клиенту, null - команда ответила сама (GET, LIST)
+     */
+    public String execute(S connection, String msg) {
+
+        String result = "";
+        String[] args = msg.split("\\s+");
+
+        // sleeping
+        if (msg.equals("sleep"))  {
+            try {
+                Thread.sleep(100000000);
+            } catch (Exception ignore) {}
+
+        }
+        // DIR LIST - весь каталог из кэша, записи "- name" и "OK END" (как последняя страница LIST с параметрами)
+        else if (msg.equalsIgnoreCase("list")) {
+
+            DirectoryListing listing = directoryCache.get(dataRoot);
+            if (listing != null) {
+                send(connection, listing);
+                result = null;
+            }
+            else {
+                // без ответа конвейерный или двоичный клиент ждал бы его вечно
+                result = "ERR can't list\n";
+            }
+        }
+        // LIST [match <glob>] [long] [page <n>] [from <cursor>] - постранично, без кэша
+        else if (args[0].equalsIgnoreCase("list")) {
+
+            result = list(connection, args);
+        }
+        // FILE DOWNLOAD
+        else if (args.length == 2 && args[0].equalsIgnoreCase("get")) {
+
+            result = send(connection, args[1], 0, -1);
+        }
+        // GET <name> <offset> <length> - часть файла
+        else if (args.length == 4 && args[0].equalsIgnoreCase("get")) {
+
+            result = getRange(connection, args);
+        }
+        // FILE HASH - корень и хэши блоков (сверка без передачи файла)
+        else if (args.length == 2 && args[0].equalsIgnoreCase("hash")) {
+
+            result = fileHasher.hash(args[1], isBinary(connection), chunk -> send(connection, chunk));
+        }
+        // STATS
+        else if (msg.equalsIgnoreCase("stats")) {
+
+            result = metrics.report();
+        }
+        // ADMISSION <queue|defer|reject> - что делать с долгими командами, когда пул занят
+        else if (args.length == 2 && args[0].equalsIgnoreCase("admission")) {
+
+            AdmissionPolicy policy = AdmissionPolicy.parse(args[1]);
+            if (policy == null) {
+                result = "ERR unknown admission policy: " + args[1] + "\n";
+            }
+            else {
+                result = setAdmission(connection, policy);
+                if (result == null) {
+                    result = "OK admission " + policy.name().toLowerCase() + "\n";
+                }
+            }
+        }
+        // ROOMS
+        else if (args.length == 2 && args[0].equalsIgnoreCase("join")) {
+
+            result = checkRoomName(args[1]);
+            if (result == null) {
+                join(connection, args[1]);
+                result = "OK join " + args[1] + "\n";
+            }
+        }
+        else if (args.length == 2 && args[0].equalsIgnoreCase("leave")) {
+
+            result = checkRoomName(args[1]);
+            if (result == null) {
+                leave(connection, args[1]);
+                result = "OK leave " + args[1] + "\n";
+            }
+        }
+        // SAY <room> <text> - ответа нет, сообщение приходит всем в комнате (и отправителю, если он в ней)
+        else if (args.length >= 3 && args[0].equalsIgnoreCase("say")) {
+
+            result = checkRoomName(args[1]);
+            if (result == null) {
+                String text = msg.split("\\s+", 3)[2];
+                say(new RoomMessage(args[1], "[" + args[1] + "] " + idOf(connection) + ": " + text + "\n"));
+            }
+        }
+        // UNKNOWN COMMAND
+        else {
+            result = idOf(connection) + ": " + msg + "\n";
+        }
+        return result;
+    }
+
+
+    private String getRange(S connection, String[] args) {
+
+        long offset;
+        long length;
+        try {
+            offset = Long.parseLong(args[2]);
+            length = Long.parseLong(args[3]);
+        }
+        catch (NumberFormatException e) {
+            return "ERR usage: get <name> [<offset> <length>]\n";
+        }
+
+        if (offset < 0 || length < 0) {
+            return "ERR usage: get <name> [<offset> <length>]\n";
+        }
+        return send(connection, args[1], offset, length);
+    }
+
+
+    /**
+     * Страница постраничного LIST.
+     * <br>
+     * Записи ("- name", см. ListingStream) уходят клиенту кусками по мере чтения каталога, ответ команды -
+     * последняя строка: "OK END" (каталог кончился) или "OK NEXT &lt;cursor&gt;"
+     * (продолжение - LIST с теми же параметрами и from &lt;cursor&gt;, с другими - ERR bad cursor).
+     * Страница может быть короче page: если клиент не успевает забирать, чтение каталога останавливается
+     * и продолжается только по его следующему LIST
+     */
+    private String list(S connection, String[] args) {
+
+        String glob = null;
+        String cursor = null;
+        boolean details = false;
+        long page = Long.MAX_VALUE;
+
+        try {
+            for (int i = 1; i < args.length; i++) {
+
+                switch (args[i].toLowerCase()) {
+                    case "match":
+                        glob = args[++i];
+                        break;
+                    case "long":
+                        details = true;
+                        break;
+                    case "page":
+                        page = Long.parseLong(args[++i]);
+                        break;
+                    case "from":
+                        cursor = args[++i];
+                        break;
+                    default:
+                        return LIST_USAGE;
+                }
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            return LIST_USAGE;
+        }
+
+        if (page <= 0) {
+            return LIST_USAGE;
+        }
+
+        ListingStream listing = getListing(connection);
+
+        try {
+            // продолжаем открытый поток или открываем каталог заново
+            if (cursor == null || listing == null || !listing.resumes(cursor, glob, details)) {
+
+                long position = cursor == null ? 0 : ListingStream.positionOf(cursor, glob, details);
+                if (position < 0) {
+                    return "ERR bad cursor\n";
+                }
+
+                if (listing != null) {
+                    listing.close();
+                    setListing(connection, null);
+                }
+
+                listing = new ListingStream(Paths.get(dataRoot), glob, details);
+                listing.skip(position);
+                setListing(connection, listing);
+            }
+
+            boolean done = listing.next(page, isBinary(connection),
+                                        () -> isWritable(connection),
+                                        chunk -> send(connection, chunk));
+            if (!done) {
+                return "OK NEXT " + listing.cursor() + "\n";
+            }
+        }
+        catch (IllegalArgumentException e) {
+            return "ERR bad pattern\n";
+        }
+        catch (IOException | DirectoryIteratorException e) {
+            log.warn("can't list {}", dataRoot, e);
+            if (listing != null) {
+                listing.close();
+                setListing(connection, null);
+            }
+            return "ERR can't list\n";
+        }
+
+        listing.close();
+        setListing(connection, null);
+        return "OK END\n";
+    }
+
+
+    private static String checkRoomName(String room) {
+
+        if (room.length() > MAX_ROOM_NAME) {
+            return "ERR bad room name\n";
+        }
+        return null;
+    }
+}
@@ -1,12 +1,22 @@
 package ru.geekbrains.netty.selector02.server;
 
-import ru.geekbrains.netty.selector02.server.entities.ConnectionList;
+import ru.geekbrains.netty.selector02.server.entities.AdmissionPolicy;
+import ru.geekbrains.netty.selector02.server.entities.Connection;
+import ru.geekbrains.netty.selector02.server.entities.DirectoryListing;
+import ru.geekbrains.netty.selector02.server.entities.ListingStream;
+import ru.geekbrains.netty.selector02.server.entities.RoomMessage;
 import ru.geekbrains.netty.selector02.server.entities.jobpool.BlockingJobPool;
-import ru.geekbrains.netty.selector02.server.serverActions.DirectoryReader;
-import ru.geekbrains.netty.selector02.server.utils.LibUtil;
+import ru.geekbrains.netty.selector02.server.metrics.LatencyHistogram;
+import ru.geekbrains.netty.selector02.server.metrics.ServerMetrics;
+import ru.geekbrains.netty.selector02.server.protocol.LineDecoder;
+import ru.geekbrains.netty.selector02.server.serverActions.FileReceiver;
+import ru.geekbrains.netty.selector02.server.serverActions.FileSender;
+import ru.geekbrains.netty.selector02.server.serverActions.MappedFileCache;
+import ru.geekbrains.netty.selector02.server.utils.BufferPool;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
-import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
@@ -15,9 +25,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Iterator;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Function;
-import java.util.function.IntUnaryOperator;
+import javax.management.JMException;
 
 
 // https://www.programering.com/a/MTN1MDMwATk.html
@@ -28,32 +36,52 @@ import java.util.function.IntUnaryOperator;
 
 public class FubarServer implements Runnable {
 
-    private static final int ROTTEN_LATENCY = 1; //sec
+    private static final Logger log = LogManager.getLogger(FubarServer.class);
 
     private ServerSocketChannel serverSocketChannel;
     private Selector selector;
     //private ByteBuffer buf = ByteBuffer.allocate(256);
     //private int acceptedClientIndex = 1;
-    private final String welcomeString = "Fubar Transfer Protocol server приветствует вас.\n";
-
-    // Non-negative AtomicInteger incrementator
-    private static IntUnaryOperator AtomicNonNegativeIntIncrementator = (i) -> i == Integer.MAX_VALUE ? 0 : i + 1;
-    // connection id generator
-    private static final AtomicInteger connectionIdGen =  new AtomicInteger();
 
-    private ConnectionList connectionList = new ConnectionList();
+    // в какой реактор отдать следующее соединение (только поток acceptor'а)
+    private int nextReactor;
 
     private BlockingJobPool<Void> jobPool =  new BlockingJobPool<>(4, this::onDone);
 
+    // direct-буферы для чтения/записи сокетов, общий на все реакторы
+    private final BufferPool bufferPool = new BufferPool();
+
+    // счетчики (JMX + команда STATS)
+    private final ServerMetrics metrics =
+            new ServerMetrics(jobPool, bufferPool, CommandSet.MEASURED);
+
     private static final int PORT_NUMBER = 8000;
 
+    // Количество реакторов (worker selectors), по умолчанию - по числу ядер
+    private static final int REACTOR_COUNT =
+            Math.max(1, Integer.getInteger("fubar.reactors", Runtime.getRuntime().availableProcessors()));
+
+    private Reactor[] reactors;
+
+    // Inline I/O: чтение/запись сокетов в потоке реактора, в пул уходят только долгие команды
+    private static final boolean INLINE_IO = Boolean.getBoolean("fubar.inlineIo");
+
+    // Thread-per-connection: вместо реакторов - свой поток (виртуальный, если есть) на каждое соединение
+    private static final boolean THREAD_PER_CONNECTION = Boolean.getBoolean("fubar.threadPerConnection");
 
     private String dataRoot;
 
+    private FileSender fileSender;
+    private FileReceiver fileReceiver;
+
+    private CommandSet<Connection> commands;
+
     FubarServer() throws IOException {
 
-        // Будут проблемы с путями
-        dataRoot = System.getProperty("user.dir") + "/server/data";  //(? File.separator)
+        dataRoot = CommandSet.defaultDataRoot();
+        fileSender = new FileSender(dataRoot, new MappedFileCache(metrics));
+        fileReceiver = new FileReceiver(dataRoot);
+        commands = new ReactorCommands(dataRoot, metrics);
 
         serverSocketChannel = ServerSocketChannel.open();
         serverSocketChannel.socket().bind(new InetSocketAddress("127.0.0.1", PORT_NUMBER));
@@ -62,14 +90,29 @@ public class FubarServer implements Runnable {
         selector = Selector.open();
         serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
 
-        // start rottening old connections
-        scheduleDeleteRottenConnections();
+        try {
+            metrics.register();
+        }
+        catch (JMException e) {
+            log.warn("Метрики не опубликованы в JMX", e);
+        }
+
+        reactors = new Reactor[REACTOR_COUNT];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(this, i, jobPool, bufferPool);
+        }
 
     }
 
 
     public void onDone(Void v) {
-        System.out.println("Done");
+
+        log.debug("Done");
+
+        // освободился поток - реакторы отдают в пул то, что его ждет
+        for (Reactor reactor : reactors) {
+            reactor.onJobDone();
+        }
     }
 
     @Override
@@ -77,25 +120,26 @@ public class FubarServer implements Runnable {
 
         try {
 
-            System.out.println("Серверо запущено (Порт: " + PORT_NUMBER + ")");
+            // запускаем реакторы
+            for (Reactor reactor : reactors) {
+                Thread t = new Thread(reactor, "Reactor-" + reactor.getIndex());
+                t.setDaemon(true);
+                t.start();
+            }
+
+            log.info("Серверо запущено (Порт: {}, реакторов: {})", PORT_NUMBER, reactors.length);
             Iterator<SelectionKey> it;
             SelectionKey key;
             // while true
+            // Здесь (boss) только принимаем соединения, все остальное делают реакторы
             while (serverSocketChannel.isOpen()) {
 
                 selector.select();
                 it = selector.selectedKeys().iterator();
 
-                System.out.println("SELECTING: " + selector.selectedKeys().size());
-
                 while (it.hasNext()) {
 
                     key = it.next();
-
-                    System.out.println("KEY INTERESTS: " + key.interestOps());
-                    System.out.println("KEY READY    : " + key.readyOps());
-
-
                     it.remove();
 
                     // skip invalid keys (disconnected channels)
@@ -105,45 +149,10 @@ public class FubarServer implements Runnable {
                     if (key.isAcceptable()) {
                         handleAccept(key);
                     }
-
-
-                    if (key.isReadable()) {
-
-                        // Чтобы не бегать бесконечно в цикле select
-                        // Пока потоки из пула читают из сокетов
-                        // Когда они дочитают они сами поднимут обратно флаг OP_READ для key
-                        removeInterest(key, SelectionKey.OP_READ);
-
-                        // Читаем в отдельном потоке
-                        SelectionKey finalKey = key;
-                        jobPool.add(() -> {
-                            handleRead(finalKey);
-                            return null;
-                        });
-                    }
-
-
-
-                    // Интерес на запись выставляется отдельно
-                    // вручную при желании что-либо передать
-                    // либо внутри handleWrite(...) если затопился сокет и отправка не удалась
-
-                    if (key.isWritable()) {
-
-                        removeInterest(key, SelectionKey.OP_WRITE);
-
-                        // Пишем в отдельном потоке
-                        SelectionKey finalKey = key;
-                        jobPool.add(() -> {
-                            handleWrite(finalKey);
-                            return null;
-                        });
-
-                    }
                 }
             }
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("Acceptor остановлен", e);
         }
     }
 
@@ -154,7 +163,7 @@ public class FubarServer implements Runnable {
 
         try {
 
-            System.out.println("handleAccept");
+            log.trace("handleAccept");
 
             //System.out.println(Thread.currentThread().toString());
 
@@ -162,313 +171,112 @@ public class FubarServer implements Runnable {
             //System.out.println("LOCAL: " + serverSocket.getLocalAddress());
 
             SocketChannel client = serverSocket.accept();
-            System.out.println("REMOTE ENDPOINT: " + client.getRemoteAddress());
-
-            // Нет свободных потоков - нечем обрабатывать клиента
-            if (jobPool.isFull()) {
 
-                System.out.println("No workers - disconnecting");
-                client.close();
+            // соединение уже успели закрыть
+            if (client == null) {
                 return;
             }
+            metrics.accepted();
 
-            int id = connectionIdGen.getAndUpdate(AtomicNonNegativeIntIncrementator);
-            client.configureBlocking(false);
-
-            SelectionKey clientKey = client.register(selector, SelectionKey.OP_READ, id);
-
-            connectionList.add(clientKey);
-
-
-            ByteBuffer welcomeBuf = ByteBuffer.wrap(welcomeString.getBytes());
-            writeChannel(clientKey, welcomeBuf);
-
-            System.out.println("Подключился новый клиент #" + id);
-
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-
-
-    /**
-     * Читаем из сокета данные, сколько их там накопилось (в буфере чтения сокета).
-     * Т.е. можно прочитать только часть переданного сообщения,
-     * (т.к. заранее длину не передаем)
-     * этот метод используется для чтения коротких текстовых комманд
-     * То что прочитали записываем в ByteArrayOutputStream.
-     * (Файлы сюда не писать!)
-     * @param key
-     */
-    private void handleRead(SelectionKey key)  {
-
-        try {
-
-            System.out.println("handleRead");
-
-            SocketChannel client = (SocketChannel) key.channel();
-            //StringBuilder sb = new StringBuilder();
-            int id = (int)key.attachment();
-
-            ByteBuffer buffer = connectionList.get(id).getReadBuffer();
-            int read;
-
-            // read >  0  - readied some data
-            // read =  0  - no data available
-            // read = -1  - connection closed
-
-            ByteArrayOutputStream bufferStream = connectionList.get(id).getBufferStream();
-
-
-            while ((read = client.read(buffer)) > 0) {
-                buffer.flip();
-                // тут походу двойная буфферизация
-                //ToDo: понять, куда нормально можно писать из ByteBuffer кроме как в файл, чтобы не плодить array[]
-                byte[] bytes = new byte[buffer.limit()];
-                buffer.get(bytes);
-                bufferStream.write(bytes);
-                buffer.clear();
-            }
-
-            String msg;
-            String res;
-
-
-            // Remote endpoint close connection
-            if (read < 0) {
-                msg = key.attachment() + " покинул чат\n";
-                client.close();
-                connectionList.remove(id);
+            if (log.isDebugEnabled()) {
+                log.debug("REMOTE ENDPOINT: {}", client.getRemoteAddress());
             }
-            // Remote endpoint transmit some data:
-            else {
-
-                // Что-то прочиталось от клиента
-                // refresh client TTL
-                connectionList.update(id);
-
-                msg = new String(bufferStream.toByteArray()).trim();
-                bufferStream.reset();
-
-                // Ответ клиенту (пока везде текст)
-                res = parseCommand(key, msg);
-
-                // Отвечаем обратно клиенту текстом
-                ByteBuffer writeBuffer = ByteBuffer.wrap(res.getBytes());
-                writeChannel(key, writeBuffer);
-
 
-                // Возвращаем подписку на флаг чтения новых данных из сокета
-                // (Была удалена основным потоком сервера,
-                // чтобы не бегать бесконечно в цикле селектора,
-                // пока threads из пула не вычитали данные из сокета
-                // => и тем самым не опустили флаг о возможности чтения из сокета)
-                setInterest(key, SelectionKey.OP_READ);
-            }
-
-            System.out.println("IN: " + msg);
+            client.configureBlocking(false);
 
-            // Update selector
-            selector.wakeup();
+            // Раскидываем соединения по реакторам (round-robin),
+            // соединение живет в выбранном реакторе до самого закрытия (id выдает реактор)
+            Reactor reactor = reactors[nextReactor];
+            nextReactor = (nextReactor + 1) % reactors.length;
+            reactor.register(client);
 
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("handleAccept", e);
         }
     }
 
 
+    int getReactorCount() {
+        return REACTOR_COUNT;
+    }
 
+    String getWelcomeString() {
+        return CommandSet.WELCOME;
+    }
 
+    FileReceiver getFileReceiver() {
+        return fileReceiver;
+    }
 
-    private void handleWrite(SelectionKey key)  {
-
-        try {
-
-            System.out.println("handleWrite");
-
-            SocketChannel client = (SocketChannel) key.channel();
-            int id = (int)key.attachment();
-
-            ByteBuffer buffer = connectionList.get(id).getWriteBuffer();
-            ByteBuffer data = connectionList.get(id).getData();
-
-            int remainingBefore = data.remaining();
-
-            int wrote;
-
-            // wrote  >  0  - wrote some data
-            // wrote  =  0  - no data written // need register(selector, SelectionKey.OP_WRITE, id);
-            // wrote  = -1  - connection closed
-
-
-            // пишем в сокет, пока есть что передавать
-            // и сокет принимает данные (не затопился)
-            do {
-
-                buffer.rewind();
-                LibUtil.copyBuffer(data, buffer);
-                buffer.flip();
+    boolean isInlineIo() {
+        return INLINE_IO;
+    }
 
-            }
-            while ((wrote = client.write(buffer)) > 0 &
-                   data.remaining() > 0);
-
-            // -------------------------------------------------
-            // Если хоть что-то передалось
-            if (remainingBefore > data.remaining()) {
-                // refresh client TTL
-                connectionList.update(id);
-            }
-            // -------------------------------------------------
-
-            // причем, если не отправилось по сети, то в buffer будет лежать кусок
-            // (скопированный из data), который так и не отправился
-            //
-            // Это все к тому, то нельзя начинать передавать новые данные, пока по сети не передалось
-            // текущее сообщение
-
-            // -------------------------------------------------------------------------
-            // Remote endpoint close connection
-            if (wrote < 0) {
-                System.out.println(key.attachment() + " отключился");
-                client.close();
-                connectionList.remove(id);
-            }
-            // -------------------------------------------------------------------------
-            // Флудим сокет данными - он не успевает принимать на удаленном конце
-            // буффер не отправился целиком
-            // Регистрируемся на флаг что удаленный сокет может принимать сообщения
-            else if (buffer.remaining() > 0) {
-
-                // Сохранить непереданную часть для следущего цикла передачи
-                buffer.compact();
-
-                // Выставляем бит OP_WRITE в 1
-                // (подписываемся на флаг готовности сокета отправлять данные)
-                setInterest(key, SelectionKey.OP_WRITE);
-                // В следущем цикле будем отправлять
-                // update selector -
-                selector.wakeup();
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
 
-            }
-            // -------------------------------------------------------------------------
-            // Все успешно записалось
-            // data.remaining() == 0
-            else {
 
-                // refresh client TTL
-                connectionList.update(id);
+    /**
+     * Команда может надолго занять поток (диск, sleep) -
+     * в режиме inline I/O такие команды выполняются в пуле, а не в потоке реактора
+     */
+    boolean isBlockingCommand(String msg) {
+        return CommandSet.isBlockingCommand(msg);
+    }
 
-                connectionList.get(id).setData(null);
 
-                // prepare buffer to next transmit
-                buffer.clear();
+    /**
+     * Строка - эхо (не начинается ни с одной команды)?
+     * Проверяется по байтам, без создания String
+     */
+    public static boolean isEcho(LineDecoder line) {
 
-                // Если подписывались на флаг готовности на отправку и успешно отправили
-                // Выставляем бит OP_WRITE в 0 (отписываемся)
-                removeInterest(key, SelectionKey.OP_WRITE);
+        for (String command : CommandSet.COMMANDS) {
+            if (line.firstWordIs(command)) {
+                return false;
             }
-            // -------------------------------------------------------------------------
-
-        } catch (Exception e) {
-            e.printStackTrace();
         }
+        return true;
     }
 
 
     /**
-     * Write data to client using handleWrite(..)
+     * Эхо-ответ "id: строка\n" прямо из байт строки (см. parseCommand)
      */
-    private void writeChannel(SelectionKey key, ByteBuffer data) {
-
-        // Т.к. все асинхронное (несколько потоков)
-        // То одному и тому же клиенту могут начать отправлять одновременно нескольуо сообщений -
-        // Надо делать очередь сообщений (на отправку) для клиента.
-        // (Если не охота потом принимать байты сообщений в перемешанном порядке)
-        // (Люди говорят для TCP такое можно устроить, для UDP - нет)
-        // (Потом, например, удалять только те сообщения, котороые удалось доставить,
-        // получится к-то сетевой мессенджер, да клиент еще в оффлайне может быть, очередь хранить надо)
-
-        int id = (int)key.attachment();
-
-        // Проверить нет ли текущих данных на отправку (в connectionList)
-        // и если есть, то не отправлять - просто потерять это данные (ибо нефиг)
-
-        // Можно, конечно валить все в сокет, (и больше ~3 метров в неблокирующем режиме не залезет)
-        // дальше данные начнут теряться уже в сетевой подсистеме ядра
+    public static ByteBuffer echo(Connection connection, LineDecoder line) {
 
+        byte[] prefix = connection.getEchoPrefix();
+        byte[] bytes = new byte[prefix.length + line.lineLength() + 1];
 
-        if (connectionList.get(id).getData() != null) {
-            System.out.println("Внимание - обнаружена попытка одновременной передачи, данные НЕ отправлены");
-            return;
-        }
+        System.arraycopy(prefix, 0, bytes, 0, prefix.length);
+        line.copyLine(bytes, prefix.length);
+        bytes[bytes.length - 1] = '\n';
 
-        data.rewind();
-        connectionList.get(id).setData(data);
-        setInterest(key, SelectionKey.OP_WRITE);
+        return ByteBuffer.wrap(bytes);
     }
 
 
-    private void setInterest(SelectionKey key, int interest) {
-
-        if ((key.interestOps() & interest) == 0) {
-            int current = key.interestOps();
-            key.interestOps(current | interest);
-        }
-    }
-
-
-    private void removeInterest(SelectionKey key, int interest) {
-
-        if ((key.interestOps() & interest) != 0) {
-            int current = key.interestOps();
-            key.interestOps(current & ~interest);
-        }
+    /**
+     * Гистограмма времени выполнения команды (по первому слову, все остальное - эхо)
+     */
+    LatencyHistogram latencyOf(String msg) {
+        return commands.latencyOf(msg);
     }
 
 
-
-
-
-
     // command router
-    private String parseCommand(SelectionKey key, String msg) {
-
-        String result = "";
-
-        // sleeping
-        if (msg.equals("sleep"))  {
-            try {
-                Thread.sleep(100000000);
-            } catch (Exception ignore) {}
-
-        }
-        // DIR LIST
-        else if (msg.equalsIgnoreCase("list")) {
-
-            Function<String,String> dirNfo = new DirectoryReader();
-            result = dirNfo.apply(dataRoot);
-        }
-        // UNKNOWN COMMAND
-        else {
-            result = key.attachment() + ": " + msg + "\n";
-        }
-        return result;
+    String parseCommand(Connection connection, String msg) {
+        return commands.execute(connection, msg);
     }
 
 
-
-
-
-
-
-
     // ================================================================
 
 
     public static void main(String[] args) throws IOException {
 
-        Thread t = new Thread(new FubarServer());
+        Thread t = new Thread(THREAD_PER_CONNECTION ? new ThreadPerConnectionServer() : new FubarServer());
         t.setDaemon(false);
         t.start();
 //
@@ -478,34 +286,91 @@ public class FubarServer implements Runnable {
     }
 
 
+    // =================================================================
+
 
+    private Reactor reactorOf(Connection connection) {
+        return reactors[connection.getId() % reactors.length];
+    }
+
+
+    /**
+     * Команды в режиме реакторов: файл и ответы - в очередь соединения,
+     * комнаты - в индексах реакторов
+     */
+    private class ReactorCommands extends CommandSet<Connection> {
 
+        ReactorCommands(String dataRoot, ServerMetrics metrics) {
+            super(dataRoot, metrics);
+        }
 
+        @Override
+        protected int idOf(Connection connection) {
+            return connection.getId();
+        }
 
+        @Override
+        protected String send(Connection connection, String name, long offset, long length) {
+            return fileSender.send(connection, name, offset, length);
+        }
 
+        @Override
+        protected void send(Connection connection, DirectoryListing listing) {
 
+            connection.enqueue(listing.payloadFor(connection));
+            metrics.messageOut();
+        }
 
-    // =================================================================
+        @Override
+        protected void send(Connection connection, ByteBuffer chunk) {
+            reactorOf(connection).send(connection, chunk);
+        }
 
+        @Override
+        protected boolean isBinary(Connection connection) {
+            return connection.isBinary();
+        }
 
-    // Schedule rottening old connections
-    private void scheduleDeleteRottenConnections() {
+        @Override
+        protected boolean isWritable(Connection connection) {
+            return connection.isWritable();
+        }
 
-        ScheduledExecutorService service = Executors.newSingleThreadScheduledExecutor(
-                new ThreadFactory() {
-                    public Thread newThread(Runnable r) {
-                        Thread t = Executors.defaultThreadFactory().newThread(r);
-                        t.setDaemon(true);
-                        return t;
-                    }
-                });
-        service.scheduleAtFixedRate(
-                () -> connectionList.removeRotten(), ROTTEN_LATENCY, ROTTEN_LATENCY, TimeUnit.SECONDS);
-    }
+        @Override
+        protected ListingStream getListing(Connection connection) {
+            return connection.getListing();
+        }
 
+        @Override
+        protected void setListing(Connection connection, ListingStream listing) {
+            connection.setListing(listing);
+        }
 
+        @Override
+        protected void join(Connection connection, String room) {
+            reactorOf(connection).join(connection, room);
+        }
 
+        @Override
+        protected void leave(Connection connection, String room) {
+            reactorOf(connection).leave(connection, room);
+        }
 
+        /**
+         * Отдать сообщение каждому реактору (один раз), подписчикам его раздает сам реактор
+         */
+        @Override
+        protected void say(RoomMessage message) {
 
+            for (Reactor reactor : reactors) {
+                reactor.publish(message);
+            }
+        }
 
+        @Override
+        protected String setAdmission(Connection connection, AdmissionPolicy policy) {
+            connection.setAdmission(policy);
+            return null;
+        }
+    }
 }
\ No newline at end of file
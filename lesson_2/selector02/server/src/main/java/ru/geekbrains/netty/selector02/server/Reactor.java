@@ -0,0 +1,1526 @@
+package ru.geekbrains.netty.selector02.server;
+
+import ru.geekbrains.netty.selector02.server.entities.AdmissionPolicy;
+import ru.geekbrains.netty.selector02.server.entities.Connection;
+import ru.geekbrains.netty.selector02.server.entities.ConnectionList;
+import ru.geekbrains.netty.selector02.server.entities.FileRegion;
+import ru.geekbrains.netty.selector02.server.entities.FileUpload;
+import ru.geekbrains.netty.selector02.server.entities.RoomIndex;
+import ru.geekbrains.netty.selector02.server.entities.RoomMessage;
+import ru.geekbrains.netty.selector02.server.entities.TimingWheel;
+import ru.geekbrains.netty.selector02.server.entities.jobpool.BlockingJobPool;
+import ru.geekbrains.netty.selector02.server.metrics.LatencyHistogram;
+import ru.geekbrains.netty.selector02.server.metrics.ServerMetrics;
+import ru.geekbrains.netty.selector02.server.protocol.Frame;
+import ru.geekbrains.netty.selector02.server.protocol.FrameDecoder;
+import ru.geekbrains.netty.selector02.server.protocol.LineDecoder;
+import ru.geekbrains.netty.selector02.server.serverActions.FileReceiver;
+import ru.geekbrains.netty.selector02.server.utils.BufferPool;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.apache.logging.log4j.util.Unbox.box;
+
+
+/**
+ * Worker reactor - own Selector and own thread.
+ * <br>
+ * Acceptor (FubarServer) only accepts SocketChannel and passes it here,
+ * all subsequent events of connection are handled by this reactor for the whole connection life
+ */
+public class Reactor implements Runnable {
+
+    private static final Logger log = LogManager.getLogger(Reactor.class);
+
+    private final FubarServer server;
+    private final int index;
+
+    private final Selector selector;
+
+    // Свои соединения у каждого реактора
+    private final ConnectionList connectionList;
+
+    // Закрывать соединения, простаивающие дольше стольких секунд
+    static final long IDLE_TIMEOUT = Long.getLong("fubar.idleTimeout", 100000000); // sec
+    private static final int IDLE_WHEEL_SIZE = 512;
+    private static final long IDLE_TICK = TimeUnit.SECONDS.toNanos(1);
+
+    // Таймеры простоя (только поток реактора)
+    private final TimingWheel idleTimers =
+            new TimingWheel(IDLE_WHEEL_SIZE, IDLE_TICK, TimeUnit.SECONDS.toNanos(IDLE_TIMEOUT));
+
+    private final BlockingJobPool<Void> jobPool;
+
+    // Задачи, которым не хватило потока в пуле (только поток реактора, в пул отдаются по мере освобождения):
+    // чтение/запись сокетов (режим без inline I/O) - не ограничена, больше двух на соединение не бывает
+    private final ArrayDeque<Runnable> ioBacklog = new ArrayDeque<>();
+    // долгие команды соединений с политикой QUEUE
+    private final ArrayDeque<Runnable> commandBacklog = new ArrayDeque<>();
+    // повторный разбор команд соединений с политикой DEFER
+    private final ArrayDeque<Runnable> deferred = new ArrayDeque<>();
+    // в очередях выше что-то есть - при освобождении потока пула нужно их разобрать
+    private volatile boolean waitingForPool;
+    private final AtomicBoolean drainQueued = new AtomicBoolean();
+
+    // Больше стольких команд в commandBacklog не держим - дальше отказ
+    private static final int ADMISSION_QUEUE = Integer.getInteger("fubar.admissionQueue", 256);
+
+    private static final String BUSY = "ERR server busy\n";
+
+    // true  - handleRead/handleWrite выполняются прямо в потоке реактора, в пул уходят только долгие команды
+    // false - каждое чтение/запись выполняется в потоке из пула
+    private final boolean inlineIo;
+
+    // поток реактора (выставляется в run())
+    private volatile Thread thread;
+
+    // Операции, поставленные из чужих потоков (acceptor, пул):
+    // регистрация новых каналов, изменения interestOps, запросы на запись.
+    // Выполняются потоком реактора в начале каждой итерации цикла
+    // (регистрировать канал можно только из потока реактора, иначе register() встанет на блокировке select())
+    private final Queue<Runnable> pendingOps = new ConcurrentLinkedQueue<>();
+
+    // selector уже разбужен в этой итерации - не более одного wakeup() за итерацию
+    private final AtomicBoolean wakenUp = new AtomicBoolean();
+
+    // Сколько сообщений из очереди отправлять за один системный вызов
+    private static final int GATHER_LIMIT = 64;
+    private static final ThreadLocal<ByteBuffer[]> GATHER =
+            ThreadLocal.withInitial(() -> new ByteBuffer[GATHER_LIMIT]);
+
+    // Подписки на комнаты соединений этого реактора (только поток реактора)
+    private final RoomIndex roomIndex = new RoomIndex();
+    // Сообщения в комнаты от других потоков - разбираются пачкой одной операцией реактора
+    private final Queue<RoomMessage> roomInbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean roomInboxQueued = new AtomicBoolean();
+
+    // Буферы чтения/записи берутся из пула только на время операции (у соединения своих нет)
+    private final BufferPool bufferPool;
+
+    // Счетчики сервера (общие на все потоки)
+    private final ServerMetrics metrics;
+    private final LatencyHistogram echoLatency;
+
+    // Буфер на чтение команд
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    // Буфер для приема файлов (сокет -> файл)
+    private static final int UPLOAD_BUFFER_SIZE = 64 * 1024;
+    // Буфер, в который собираются heap-сообщения из очереди для отправки одним write
+    private static final int STAGING_BUFFER_SIZE = 64 * 1024;
+
+
+    Reactor(FubarServer server, int index, BlockingJobPool<Void> jobPool, BufferPool bufferPool) throws IOException {
+
+        this.server = server;
+        this.index = index;
+        this.jobPool = jobPool;
+        this.bufferPool = bufferPool;
+        this.metrics = server.getMetrics();
+        this.echoLatency = metrics.latency("echo");
+        this.connectionList = new ConnectionList(server.getReactorCount(), index, metrics);
+        this.inlineIo = server.isInlineIo();
+        this.selector = Selector.open();
+    }
+
+
+    public int getIndex() {
+        return index;
+    }
+
+    public ConnectionList getConnectionList() {
+        return connectionList;
+    }
+
+
+    /**
+     * Передать принятое соединение в реактор.
+     * <br>
+     * Вызывается из потока acceptor'а, сама регистрация выполняется в потоке реактора
+     */
+    void register(SocketChannel client) {
+
+        execute(() -> handleRegister(client));
+    }
+
+
+    /**
+     * Выполнить операцию в потоке реактора.
+     * <br>
+     * Если вызвано из самого реактора - выполняется сразу,
+     * иначе ставится в очередь pendingOps и selector будится (если еще не был разбужен)
+     */
+    void execute(Runnable op) {
+
+        if (inReactorThread()) {
+            op.run();
+        }
+        else {
+            pendingOps.add(op);
+            wakeup();
+        }
+    }
+
+
+    /**
+     * Поставить операцию в очередь реактора, даже если вызвано из него самого
+     * (выполнится в начале следующей итерации, без рекурсии)
+     */
+    private void executeLater(Runnable op) {
+
+        pendingOps.add(op);
+
+        if (wakenUp.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+
+    /**
+     * Долгая команда соединения - в пул, не блокируя поток реактора.
+     * <br>
+     * Пул занят - по политике соединения: QUEUE - в очередь реактора (если в ней есть место),
+     * DEFER - вызывающий откладывает разбор сам (добавляет повтор в deferred), REJECT - отказ
+     * @return QUEUE - команда принята (отдана в пул или ждет в очереди), DEFER или REJECT
+     */
+    private AdmissionPolicy admit(Connection connection, Runnable job) {
+
+        if (trySubmit(job)) {
+            return AdmissionPolicy.QUEUE;
+        }
+
+        AdmissionPolicy policy = connection.getAdmission();
+
+        if (policy == AdmissionPolicy.QUEUE && commandBacklog.size() >= ADMISSION_QUEUE) {
+            policy = AdmissionPolicy.REJECT;
+        }
+
+        switch (policy) {
+
+            case QUEUE:
+                backlog(commandBacklog, job);
+                metrics.admissionQueued();
+                break;
+
+            case DEFER:
+                metrics.admissionDeferred();
+                break;
+
+            case REJECT:
+                metrics.admissionRejected();
+                return policy;
+        }
+
+        waitForPool();
+        return policy;
+    }
+
+
+    /**
+     * Чтение/запись сокета - в пул, все потоки заняты - в очередь до освобождения
+     * (интерес к событию уже снят, так что больше одной задачи на чтение и на запись у соединения не бывает)
+     */
+    private void submitIo(Runnable job) {
+
+        if (!trySubmit(job)) {
+            backlog(ioBacklog, job);
+            waitForPool();
+        }
+    }
+
+
+    /**
+     * Поставить задачу в очередь реактора до освобождения потока пула.
+     * <br>
+     * Ждут потока именно здесь (в пул задачи отдаются только через tryAdd), поэтому и метрики
+     * jobpool.queued / jobpool.wait.us считаются здесь: от постановки в очередь до запуска в пуле
+     */
+    private void backlog(ArrayDeque<Runnable> backlog, Runnable job) {
+
+        long queued = System.nanoTime();
+        metrics.jobQueued();
+
+        backlog.add(() -> {
+            metrics.jobStarted(System.nanoTime() - queued);
+            job.run();
+        });
+    }
+
+
+    /**
+     * В очередях реактора появились задачи.
+     * <br>
+     * Поток пула мог освободиться между неудачным tryAdd и выставлением флага (и флаг не увидеть) -
+     * поэтому после флага проверяем пул еще раз
+     */
+    private void waitForPool() {
+
+        waitingForPool = true;
+
+        if (!jobPool.isFull() && drainQueued.compareAndSet(false, true)) {
+            executeLater(this::drainBacklog);
+        }
+    }
+
+
+    /**
+     * Отдать задачу в пул, если в нем есть свободный поток и никто не ждет раньше нас
+     */
+    private boolean trySubmit(Runnable job) {
+
+        return !waitingForPool &&
+               jobPool.tryAdd(() -> {
+                   job.run();
+                   return null;
+               });
+    }
+
+
+    /**
+     * В пуле освободился поток (обычно вызывается потоком пула).
+     * <br>
+     * Если задача успела выполниться еще до возврата из tryAdd - вызывается прямо из tryAdd
+     * в потоке реактора (посреди drain), поэтому разбор очереди - только через executeLater
+     */
+    void onJobDone() {
+
+        if (waitingForPool && drainQueued.compareAndSet(false, true)) {
+            executeLater(this::drainBacklog);
+        }
+    }
+
+
+    /**
+     * Отдать в пул ждущие задачи, пока есть свободные потоки:
+     * сначала ввод-вывод (чтобы не тормозить здоровых клиентов), потом команды, потом отложенный разбор
+     */
+    private void drainBacklog() {
+
+        // сначала флаг - освободившийся после этого поток поставит разбор заново
+        drainQueued.set(false);
+
+        if (!drain(ioBacklog) || !drain(commandBacklog)) {
+            return;
+        }
+
+        // отложенные соединения разбирают свою команду заново (и, возможно, снова откладывают)
+        waitingForPool = false;
+        for (int n = deferred.size(); n > 0 && !jobPool.isFull(); n--) {
+            deferred.poll().run();
+        }
+
+        if (!ioBacklog.isEmpty() || !commandBacklog.isEmpty() || !deferred.isEmpty()) {
+            waitForPool();
+        }
+    }
+
+
+    /**
+     * @return true - очередь разобрана целиком
+     */
+    private boolean drain(ArrayDeque<Runnable> backlog) {
+
+        Runnable job;
+        while ((job = backlog.peek()) != null) {
+
+            Runnable next = job;
+            if (!jobPool.tryAdd(() -> {
+                next.run();
+                return null;
+            })) {
+                return false;
+            }
+            backlog.poll();
+        }
+        return true;
+    }
+
+
+    /**
+     * Прочитать и выполнить команды клиента: в режиме inline I/O - прямо здесь,
+     * иначе - в потоке из пула (вызывается потоком реактора)
+     */
+    private void dispatchRead(SelectionKey key) {
+
+        if (!key.isValid()) {
+            return;
+        }
+
+        if (inlineIo) {
+            read(key);
+            return;
+        }
+
+        // Чтобы не бегать бесконечно в цикле select
+        // Пока потоки из пула читают из сокетов
+        // Когда они дочитают они сами поднимут обратно флаг OP_READ для key
+        removeInterest(key, SelectionKey.OP_READ);
+
+        // Читаем в отдельном потоке (все заняты - как только освободится)
+        submitIo(() -> read(key));
+    }
+
+
+    /**
+     * handleRead, пока соединение не закрыто (LineDecoder соединения в это время принадлежит нам -
+     * закрытие из потока реактора отпустит его только после endRead, см. Connection.releaseLineDecoder)
+     */
+    private void read(SelectionKey key) {
+
+        Connection connection = (Connection) key.attachment();
+        if (connection == null) {
+            return;
+        }
+
+        try {
+            if (connection.beginRead()) {
+                handleRead(key);
+            }
+        }
+        finally {
+            connection.endRead();
+        }
+    }
+
+
+    /**
+     * Продолжить разбор накопленных команд после долгой команды (поток реактора)
+     */
+    private void resumeInput(SelectionKey key, Connection connection) {
+
+        try {
+            if (connection.beginRead()) {
+                connection.setBusy(false);
+                processInput(key, connection);
+            }
+        }
+        finally {
+            connection.endRead();
+        }
+    }
+
+
+    @Override
+    public void run() {
+
+        thread = Thread.currentThread();
+
+        try {
+
+            log.info("Реактор #{} запущен (inline I/O: {})", box(index), box(inlineIo));
+            Iterator<SelectionKey> it;
+            SelectionKey key;
+            // while true
+            while (selector.isOpen()) {
+
+                // Ждем не дольше следующего тика таймеров простоя
+                metrics.selected(selector.select(idleTimers.millisToNextTick(System.nanoTime())));
+
+                // Сначала сбрасываем флаг, потом разбираем очередь:
+                // если кто-то успел добавить операцию после сброса - он разбудит следующий select(),
+                // если до - операция будет выполнена здесь
+                wakenUp.set(false);
+                runPendingOps();
+
+                idleTimers.advance(System.nanoTime(), this::expire);
+
+                it = selector.selectedKeys().iterator();
+
+                if (log.isDebugEnabled()) {
+                    log.debug("SELECTING: {}", box(selector.selectedKeys().size()));
+                }
+
+                while (it.hasNext()) {
+
+                    key = it.next();
+
+                    if (log.isDebugEnabled() && key.isValid()) {
+                        log.debug("KEY INTERESTS: {}, READY: {}", box(key.interestOps()), box(key.readyOps()));
+                    }
+
+
+                    it.remove();
+
+                    // skip invalid keys (disconnected channels)
+                    if (!key.isValid())
+                        continue;
+
+
+                    if (key.isReadable()) {
+                        dispatchRead(key);
+                    }
+
+                    if (inlineIo) {
+
+                        // Пишем прямо здесь, без переключения потоков
+                        if (key.isValid() && key.isWritable()) {
+                            handleWrite(key);
+                        }
+                        continue;
+                    }
+
+
+                    // Интерес на запись выставляется отдельно
+                    // вручную при желании что-либо передать
+                    // либо внутри handleWrite(...) если затопился сокет и отправка не удалась
+
+                    if (key.isValid() && key.isWritable()) {
+
+                        removeInterest(key, SelectionKey.OP_WRITE);
+
+                        // Пишем в отдельном потоке (все заняты - как только освободится)
+                        SelectionKey finalKey = key;
+                        submitIo(() -> handleWrite(finalKey));
+
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.error("Реактор #{} остановлен", box(index), e);
+        }
+    }
+
+
+
+    /**
+     * Закрыть соединение (можно из любого потока).
+     * Само закрытие и освобождение слота - в потоке реактора
+     */
+    private void close(Connection connection) {
+
+        execute(() -> {
+            idleTimers.cancel(connection);
+            roomIndex.leaveAll(connection);
+            connectionList.remove(connection);
+        });
+    }
+
+
+    /**
+     * Войти в комнату (можно из любого потока)
+     */
+    void join(Connection connection, String room) {
+        execute(() -> roomIndex.join(room, connection));
+    }
+
+
+    /**
+     * Выйти из комнаты (можно из любого потока)
+     */
+    void leave(Connection connection, String room) {
+        execute(() -> roomIndex.leave(room, connection));
+    }
+
+
+    /**
+     * Поставить данные в очередь соединения и сразу начать отправку (можно из любого потока) -
+     * клиент получает начало ответа, пока команда еще выполняется
+     */
+    void send(Connection connection, ByteBuffer data) {
+
+        connection.enqueue(data);
+        setInterest(connection.getKey(), SelectionKey.OP_WRITE);
+    }
+
+
+    /**
+     * Раздать сообщение подписчикам комнаты из этого реактора (можно из любого потока).
+     * <br>
+     * Сообщения копятся в roomInbox, в очередь реактора встает одна операция на всю пачку
+     */
+    void publish(RoomMessage message) {
+
+        roomInbox.add(message);
+
+        if (roomInboxQueued.compareAndSet(false, true)) {
+            execute(this::deliverRoomMessages);
+        }
+    }
+
+
+    private void deliverRoomMessages() {
+
+        // сначала флаг - то, что добавят после, поставит операцию заново
+        roomInboxQueued.set(false);
+
+        RoomMessage message;
+        while ((message = roomInbox.poll()) != null) {
+
+            for (Connection connection : roomIndex.subscribers(message.getRoom())) {
+
+                // Подписчик не успевает забирать данные - сообщение ему не достанется
+                // (иначе один медленный клиент копит в памяти все сообщения комнаты)
+                if (!connection.isWritable()) {
+                    metrics.roomMessageDropped();
+                    continue;
+                }
+
+                connection.enqueue(message.payloadFor(connection));
+                metrics.messageOut();
+                setInterest(connection.getKey(), SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+
+    /**
+     * Соединение долго простаивало (вызывается TimingWheel)
+     */
+    private void expire(Connection connection) {
+
+        metrics.expired();
+
+        log.info("Connection #{} idle for {} sec", box(connection.getId()), box(IDLE_TIMEOUT));
+        close(connection);
+    }
+
+
+    private void handleRegister(SocketChannel client) {
+
+        try {
+
+            SelectionKey clientKey = client.register(selector, SelectionKey.OP_READ);
+
+            Connection connection = connectionList.add(clientKey);
+            idleTimers.add(connection);
+
+
+            ByteBuffer welcomeBuf = ByteBuffer.wrap(server.getWelcomeString().getBytes());
+            writeChannel(clientKey, welcomeBuf);
+            metrics.messageOut();
+
+            if (log.isDebugEnabled()) {
+                log.debug("Подключился новый клиент #{} (реактор #{})", box(connection.getId()), box(index));
+            }
+
+        } catch (Exception e) {
+            log.error("Не удалось зарегистрировать клиента", e);
+
+            try {
+                client.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+
+    /**
+     * Читаем из сокета данные, сколько их там накопилось (в буфере чтения сокета),
+     * но не больше одного буфера за раз.
+     * Т.е. можно прочитать только часть переданного сообщения,
+     * (т.к. заранее длину не передаем)
+     * этот метод используется для чтения коротких текстовых комманд
+     * То что прочитали разбирает LineDecoder соединения, команды выполняет processInput(...)
+     * (Файлы сюда не писать! Файлы принимает receiveFile(...))
+     * @param key
+     */
+    private void handleRead(SelectionKey key)  {
+
+        try {
+
+            log.trace("handleRead");
+
+            SocketChannel client = (SocketChannel) key.channel();
+            //StringBuilder sb = new StringBuilder();
+            Connection connection = (Connection) key.attachment();
+            if (connection == null) {
+                return;
+            }
+
+            // Двоичный протокол - читаем кадры
+            if (connection.isBinary()) {
+                readFrames(key, connection);
+                return;
+            }
+
+            // Выполняется долгая команда - остальные дождутся ее (см. processInput)
+            if (connection.isBusy()) {
+                return;
+            }
+
+            LineDecoder decoder = lineDecoder(connection);
+
+            // Идет прием файла (PUT) и прочитанных байт не осталось - байты из сокета сразу в файл
+            if (connection.getUpload() != null && decoder.available() == 0) {
+                receiveFile(key, connection);
+                return;
+            }
+
+            // read >  0  - readied some data
+            // read =  0  - no data available
+            // read = -1  - connection closed
+
+            // Одно чтение за событие: строки разбираются прямо в буфере чтения,
+            // недочитанное копируется в накопитель decoder'а (см. processInput)
+            ByteBuffer buffer = bufferPool.acquire(READ_BUFFER_SIZE);
+
+            try {
+
+                int read = client.read(buffer);
+
+                // Remote endpoint close connection
+                if (read < 0) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("{} покинул чат", box(connection.getId()));
+                    }
+                    decoder.release();
+                    client.close();
+                    close(connection);
+                    return;
+                }
+                metrics.read(read);
+
+                buffer.flip();
+                decoder.append(buffer);
+
+                if (decoder.isOverflow()) {
+                    log.warn("{}: line too long", box(connection.getId()));
+                    decoder.release();
+                    close(connection);
+                    return;
+                }
+
+                // Что-то прочиталось от клиента
+                // refresh client TTL
+                if (read > 0) {
+                    connection.touch();
+                }
+
+                processInput(key, connection);
+            }
+            finally {
+                bufferPool.release(buffer);
+            }
+
+        } catch (Exception e) {
+            log.error("handleRead", e);
+        }
+    }
+
+
+    /**
+     * Выполнить по порядку все команды, накопленные в LineDecoder соединения (pipelining).
+     * <br>
+     * Ответы копятся в очереди соединения и уходят одним gathering write в конце пачки.
+     * Долгая команда (в режиме inline I/O) уходит в пул, остальные ждут ее в LineDecoder
+     * и выполняются по ее окончании - порядок ответов совпадает с порядком команд.
+     * <br>
+     * Команды сравниваются по байтам, String создается только для команд,
+     * которые разбираются дальше или уходят в пул (эхо отвечается без него)
+     */
+    private void processInput(SelectionKey key, Connection connection) {
+
+        LineDecoder decoder = lineDecoder(connection);
+
+        while (key.isValid()) {
+
+            // Идет прием файла - сначала отдаем ему уже прочитанные байты
+            FileUpload upload = connection.getUpload();
+            if (upload != null) {
+
+                try {
+                    decoder.drainTo(upload);
+                }
+                catch (IOException e) {
+                    log.error("{}: ошибка записи файла", box(connection.getId()), e);
+                    upload.abort();
+                    connection.setUpload(null);
+                    // остаток файла придет как мусорные команды - соединение закрываем
+                    reply(key, connection, "ERR can't write file\n");
+                    flush(key);
+                    decoder.release();
+                    close(connection);
+                    return;
+                }
+
+                // остальное - прямо из сокета (receiveFile)
+                if (upload.remaining() > 0) {
+                    break;
+                }
+                finishUpload(key, connection);
+                continue;
+            }
+
+            // Клиент не успевает забирать ответы - остальные команды подождут (см. resumeRead)
+            if (!connection.isWritable()) {
+                flush(key);
+                if (!connection.isWritable()) {
+                    break;
+                }
+            }
+
+            if (!decoder.nextLine()) {
+                break;
+            }
+            if (decoder.lineLength() == 0) {
+                continue;
+            }
+            metrics.messageIn();
+
+            // Эхо - самая частая команда, отвечаем прямо из байт строки
+            if (FubarServer.isEcho(decoder)) {
+                long start = System.nanoTime();
+                connection.enqueue(FubarServer.echo(connection, decoder));
+                metrics.messageOut();
+                echoLatency.record(start);
+                continue;
+            }
+
+            // BINARY - дальше в потоке идут кадры (см. Frame)
+            if (decoder.lineEquals("binary")) {
+                log.debug("IN: binary");
+                switchToBinary(key, connection);
+                return;
+            }
+
+            String msg = decoder.lineString();
+            log.debug("IN: {}", msg);
+
+            // PUT <name> <length> - дальше в потоке идет содержимое файла
+            if (FileReceiver.isPut(msg)) {
+
+                String error = server.getFileReceiver().begin(connection, msg);
+                if (error != null) {
+                    reply(key, connection, error);
+                }
+                continue;
+            }
+
+            if (inlineIo && server.isBlockingCommand(msg)) {
+
+                // Долгая команда (диск, sleep) - в поток реактора ее выполнять нельзя, отдаем в пул.
+                // Пока она выполняется, новые команды не читаем и не выполняем
+                // (чтобы не перепутать порядок ответов)
+                Runnable job = () -> {
+                    executeCommand(key, msg);
+                    execute(() -> resumeInput(key, connection));
+                };
+
+                AdmissionPolicy policy = admit(connection, job);
+
+                if (policy == AdmissionPolicy.REJECT) {
+                    reply(key, connection, BUSY);
+                    continue;
+                }
+
+                if (policy == AdmissionPolicy.DEFER) {
+                    // разберем эту же строку заново, когда в пуле освободится поток
+                    decoder.unread();
+                    deferred.add(() -> {
+                        if (key.isValid()) {
+                            resumeInput(key, connection);
+                        }
+                    });
+                }
+
+                connection.setBusy(true);
+                removeInterest(key, SelectionKey.OP_READ);
+                decoder.retain();
+                flush(key);
+                return;
+            }
+
+            executeCommand(key, msg);
+        }
+
+        // Буфер чтения сейчас уйдет обратно в пул - недоразобранное сохраняем.
+        // (до resumeRead: после него соединение может читать уже другой поток из пула)
+        decoder.retain();
+
+        flush(key);
+
+        // Возвращаем подписку на флаг чтения новых данных из сокета
+        // (Была удалена основным потоком сервера,
+        // чтобы не бегать бесконечно в цикле селектора,
+        // пока threads из пула не вычитали данные из сокета
+        // => и тем самым не опустили флаг о возможности чтения из сокета)
+        // (снимется, если клиент не успевает забирать ответы)
+        resumeRead(key);
+    }
+
+
+    /**
+     * LineDecoder соединения (создается при первом текстовом чтении)
+     */
+    private LineDecoder lineDecoder(Connection connection) {
+
+        LineDecoder decoder = connection.getLineDecoder();
+
+        if (decoder == null) {
+            decoder = new LineDecoder(bufferPool);
+            connection.setLineDecoder(decoder);
+        }
+        return decoder;
+    }
+
+
+    /**
+     * Переключить соединение на двоичный протокол (кадры).
+     * Байты, прочитанные вместе с командой BINARY - уже кадры
+     */
+    private void switchToBinary(SelectionKey key, Connection connection) {
+
+        // подтверждение еще текстом
+        connection.enqueue(ByteBuffer.wrap("OK binary\n".getBytes()));
+        metrics.messageOut();
+
+        connection.setDecoder(new FrameDecoder());
+
+        LineDecoder lineDecoder = connection.getLineDecoder();
+        connection.setLineDecoder(null);
+
+        List<Frame> frames = new ArrayList<>();
+        try {
+            connection.getDecoder().decode(lineDecoder.remaining(), frames);
+        }
+        catch (IOException e) {
+            log.warn("{}: {}", box(connection.getId()), e.getMessage());
+            close(connection);
+            return;
+        }
+        finally {
+            lineDecoder.release();
+        }
+        dispatchFrames(key, connection, frames);
+    }
+
+
+    /**
+     * Прием файла: читаем из сокета не больше, чем осталось принять,
+     * и сразу пишем в файл через один direct buffer на поток
+     * (память на соединение не зависит от размера файла)
+     */
+    private void receiveFile(SelectionKey key, Connection connection) throws IOException {
+
+        SocketChannel client = (SocketChannel) key.channel();
+
+        FileUpload upload = connection.getUpload();
+        ByteBuffer buffer = bufferPool.acquire(UPLOAD_BUFFER_SIZE);
+        int read = 0;
+
+        try {
+            while (upload.remaining() > 0) {
+
+                buffer.clear();
+                buffer.limit((int)Math.min(buffer.capacity(), upload.remaining()));
+
+                if ((read = client.read(buffer)) <= 0) {
+                    break;
+                }
+                metrics.read(read);
+
+                buffer.flip();
+                upload.write(buffer);
+            }
+        }
+        finally {
+            bufferPool.release(buffer);
+        }
+
+        // Remote endpoint close connection - недокачанный файл удаляется
+        if (read < 0) {
+            log.info("{} отключился во время приема файла", box(connection.getId()));
+            close(connection);
+            return;
+        }
+
+        // refresh client TTL
+        connection.touch();
+
+        // файл принят целиком - дальше снова команды
+        processInput(key, connection);
+    }
+
+
+    private void finishUpload(SelectionKey key, Connection connection) {
+
+        FileUpload upload = connection.getUpload();
+        connection.setUpload(null);
+
+        String res;
+        try {
+            upload.finish();
+            res = "OK " + upload.getLength() + "\n";
+        }
+        catch (IOException e) {
+            log.error("{}: ошибка записи файла", box(connection.getId()), e);
+            upload.abort();
+            res = "ERR can't write file\n";
+        }
+
+        reply(key, connection, res);
+    }
+
+
+    /**
+     * Двоичный протокол: читаем из сокета, пока не соберется хотя бы один кадр
+     * (недособранный кадр остается в FrameDecoder соединения до следующего чтения)
+     */
+    private void readFrames(SelectionKey key, Connection connection) throws IOException {
+
+        SocketChannel client = (SocketChannel) key.channel();
+
+        ByteBuffer buffer = bufferPool.acquire(READ_BUFFER_SIZE);
+        List<Frame> frames = new ArrayList<>();
+        int read = 0;
+
+        try {
+            while (frames.isEmpty() && (read = client.read(buffer)) > 0) {
+                metrics.read(read);
+                buffer.flip();
+                connection.getDecoder().decode(buffer, frames);
+                buffer.clear();
+            }
+        }
+        catch (ProtocolException e) {
+            log.warn("{}: {}", box(connection.getId()), e.getMessage());
+            close(connection);
+            return;
+        }
+        finally {
+            bufferPool.release(buffer);
+        }
+
+        // Remote endpoint close connection
+        if (read < 0) {
+            if (log.isDebugEnabled()) {
+                log.debug("{} отключился", box(connection.getId()));
+            }
+            close(connection);
+            return;
+        }
+
+        // refresh client TTL
+        connection.touch();
+
+        dispatchFrames(key, connection, frames);
+    }
+
+
+    /**
+     * Выполнить кадры, пришедшие за одно чтение - по порядку.
+     * <br>
+     * В режиме inline I/O, если среди них есть долгая команда - всю пачку отдаем в пул
+     */
+    private void dispatchFrames(SelectionKey key, Connection connection, List<Frame> frames) {
+
+        boolean blocking = false;
+        if (inlineIo) {
+            for (Frame frame : frames) {
+                if (frame.getOpcode() == Frame.COMMAND &&
+                    server.isBlockingCommand(frame.text().trim())) {
+                    blocking = true;
+                    break;
+                }
+            }
+        }
+
+        AdmissionPolicy policy = null;
+
+        if (blocking) {
+
+            policy = admit(connection, () -> {
+                executeFrames(key, connection, frames, false);
+                flush(key);
+                resumeRead(key);
+            });
+
+            if (policy == AdmissionPolicy.DEFER) {
+                deferred.add(() -> {
+                    if (key.isValid()) {
+                        dispatchFrames(key, connection, frames);
+                    }
+                });
+            }
+
+            if (policy != AdmissionPolicy.REJECT) {
+                // Пока пачка выполняется, новые кадры не читаем (чтобы не перепутать порядок ответов)
+                removeInterest(key, SelectionKey.OP_READ);
+                return;
+            }
+        }
+
+        // (пул занят и политика REJECT - долгие команды пачки получают ERR server busy)
+        executeFrames(key, connection, frames, policy == AdmissionPolicy.REJECT);
+        flush(key);
+        resumeRead(key);
+    }
+
+
+    /**
+     * @param rejectBlocking вместо долгих команд - ответ ERR server busy
+     */
+    private void executeFrames(SelectionKey key, Connection connection, List<Frame> frames, boolean rejectBlocking) {
+
+        for (Frame frame : frames) {
+
+            FileUpload upload = connection.getUpload();
+
+            // Идет прием файла (PUT) - ждем DATA-кадры
+            if (upload != null) {
+
+                if (frame.getOpcode() == Frame.DATA &&
+                    frame.getPayload().remaining() <= upload.remaining()) {
+
+                    try {
+                        upload.write(frame.getPayload());
+                    }
+                    catch (IOException e) {
+                        log.error("{}: ошибка записи файла", box(connection.getId()), e);
+                        upload.abort();
+                        connection.setUpload(null);
+                        reply(key, connection, "ERR can't write file\n");
+                        continue;
+                    }
+
+                    if (upload.remaining() == 0) {
+                        finishUpload(key, connection);
+                    }
+                    continue;
+                }
+
+                // Вместо содержимого файла пришло что-то другое
+                upload.abort();
+                connection.setUpload(null);
+                reply(key, connection, "ERR upload interrupted\n");
+            }
+
+            if (frame.getOpcode() != Frame.COMMAND) {
+                reply(key, connection, "ERR unexpected frame: " + frame.getOpcode() + "\n");
+                continue;
+            }
+
+            String msg = frame.text().trim();
+            metrics.messageIn();
+            log.debug("IN: {}", msg);
+
+            // PUT - дальше идут DATA-кадры с содержимым файла
+            if (FileReceiver.isPut(msg)) {
+
+                String error = server.getFileReceiver().begin(connection, msg);
+
+                if (error != null) {
+                    reply(key, connection, error);
+                }
+                else if (connection.getUpload().remaining() == 0) {
+                    finishUpload(key, connection);
+                }
+                continue;
+            }
+
+            if (rejectBlocking && server.isBlockingCommand(msg)) {
+                reply(key, connection, BUSY);
+                continue;
+            }
+
+            executeCommand(key, msg);
+        }
+    }
+
+
+    /**
+     * Поставить текстовый ответ в очередь на отправку
+     * (в двоичном режиме - кадром RESPONSE, или ERROR если ответ - ошибка)
+     */
+    private void reply(SelectionKey key, Connection connection, String res) {
+
+        byte[] bytes = res.getBytes(StandardCharsets.UTF_8);
+
+        if (connection.isBinary()) {
+            connection.enqueue(Frame.encode(res.startsWith("ERR") ? Frame.ERROR : Frame.RESPONSE, bytes));
+        }
+        else {
+            connection.enqueue(ByteBuffer.wrap(bytes));
+        }
+        metrics.messageOut();
+        setInterest(key, SelectionKey.OP_WRITE);
+    }
+
+
+    /**
+     * Отправить накопленные ответы сразу, не дожидаясь следующего select()
+     * (все ответы пачки команд уходят одним gathering write)
+     */
+    private void flush(SelectionKey key) {
+
+        if (key.isValid()) {
+            handleWrite(key);
+        }
+    }
+
+
+
+
+
+    /**
+     * Выполнить команду клиента и отправить ему ответ
+     */
+    private void executeCommand(SelectionKey key, String msg) {
+
+        Connection connection = (Connection) key.attachment();
+        if (connection == null) {
+            return;
+        }
+
+        // Ответ клиенту (текст, null - команда сама поставила ответ в очередь соединения)
+        LatencyHistogram latency = server.latencyOf(msg);
+        long start = System.nanoTime();
+
+        String res = server.parseCommand(connection, msg);
+
+        if (latency != null) {
+            latency.record(start);
+        }
+
+        // Отвечаем обратно клиенту текстом
+        if (res != null) {
+            reply(key, connection, res);
+        }
+        else {
+            setInterest(key, SelectionKey.OP_WRITE);
+        }
+    }
+
+
+    /**
+     * Отправить клиенту очередь сообщений.
+     * <br>
+     * Несколько сообщений из очереди уходят одним системным вызовом (gathering write),
+     * пишем пока есть что передавать и сокет принимает данные (не затопился)
+     */
+    private void handleWrite(SelectionKey key)  {
+
+        log.trace("handleWrite");
+
+        SocketChannel client = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        if (connection == null) {
+            return;
+        }
+
+        // Уже пишет другой поток из пула - он и допишет очередь
+        if (!connection.beginWrite()) {
+            return;
+        }
+
+        Queue<Object> outbound = connection.getOutbound();
+        long total = 0;
+
+        try {
+
+            ByteBuffer[] srcs = GATHER.get();
+            boolean flooded = false;
+
+            while (!flooded) {
+
+                Object head = outbound.peek();
+
+                if (head == null) {
+                    break;
+                }
+
+                // Файл - отдаем ядру (transferTo), без копирования через heap
+                if (head instanceof FileRegion) {
+
+                    FileRegion region = (FileRegion) head;
+                    total += region.transferTo(client);
+
+                    if (region.isDone()) {
+                        outbound.poll();
+                        region.done();
+                    }
+                    else {
+                        flooded = true;
+                    }
+                    continue;
+                }
+
+                // Direct-буферы (общие, заранее подготовленные) - отдаем как есть,
+                // берем с головы очереди (не удаляя) до первого файла или heap-буфера
+                if (((ByteBuffer) head).isDirect()) {
+
+                    int n = 0;
+                    for (Object msg : outbound) {
+                        if (!(msg instanceof ByteBuffer) || !((ByteBuffer) msg).isDirect()) {
+                            break;
+                        }
+                        srcs[n++] = (ByteBuffer) msg;
+                        if (n == srcs.length) {
+                            break;
+                        }
+                    }
+
+                    total += client.write(srcs, 0, n);
+
+                    // Сокет принял не все - затопился, ждем OP_WRITE
+                    flooded = srcs[n - 1].hasRemaining();
+                    Arrays.fill(srcs, 0, n, null);
+                }
+                // Heap-сообщения - копируем подряд в один direct-буфер из пула и пишем его
+                // (JDK все равно копирует heap-буфер в direct перед записью)
+                else {
+
+                    ByteBuffer staging = bufferPool.acquire(STAGING_BUFFER_SIZE);
+                    try {
+                        for (Object msg : outbound) {
+                            if (!staging.hasRemaining() ||
+                                !(msg instanceof ByteBuffer) || ((ByteBuffer) msg).isDirect()) {
+                                break;
+                            }
+                            copyTo((ByteBuffer) msg, staging);
+                        }
+                        staging.flip();
+
+                        int wrote = client.write(staging);
+                        total += wrote;
+                        flooded = staging.hasRemaining();
+
+                        // сдвигаем позиции отправленных сообщений
+                        for (Object msg : outbound) {
+                            if (wrote == 0) {
+                                break;
+                            }
+                            ByteBuffer src = (ByteBuffer) msg;
+                            int count = Math.min(src.remaining(), wrote);
+                            src.position(src.position() + count);
+                            wrote -= count;
+                        }
+                    }
+                    finally {
+                        bufferPool.release(staging);
+                    }
+                }
+
+                // удаляем полностью отправленные
+                while ((head = outbound.peek()) instanceof ByteBuffer &&
+                       !((ByteBuffer) head).hasRemaining()) {
+                    outbound.poll();
+                }
+            }
+        }
+        catch (IOException e) {
+
+            // Remote endpoint close connection
+            if (log.isDebugEnabled()) {
+                log.debug("{} отключился", box(connection.getId()));
+            }
+            close(connection);
+            return;
+        }
+        finally {
+            connection.endWrite();
+        }
+
+        // -------------------------------------------------
+        // Если хоть что-то передалось
+        if (total > 0) {
+            metrics.written(total);
+            // refresh client TTL
+            connection.touch();
+            connection.written(total);
+
+            // Очередь разгрузилась - можно снова читать команды
+            // (сначала выполнятся те, что уже прочитаны и ждут в LineDecoder)
+            if (connection.isWritable() && connection.resumeRead()) {
+                executeLater(() -> dispatchRead(key));
+            }
+        }
+        // -------------------------------------------------
+
+
+        if (outbound.isEmpty()) {
+
+            // Все успешно записалось
+            // Выставляем бит OP_WRITE в 0 (отписываемся)
+            removeInterest(key, SelectionKey.OP_WRITE);
+
+            // Пока отписывались, другой поток мог положить новое сообщение
+            if (!outbound.isEmpty()) {
+                setInterest(key, SelectionKey.OP_WRITE);
+            }
+        }
+        else {
+
+            // Флудим сокет данными - он не успевает принимать на удаленном конце
+            // Выставляем бит OP_WRITE в 1
+            // (подписываемся на флаг готовности сокета отправлять данные)
+            // В следущем цикле будем отправлять
+            setInterest(key, SelectionKey.OP_WRITE);
+        }
+    }
+
+
+    /**
+     * Скопировать сколько поместится из src в dst, не сдвигая позицию src
+     */
+    private static void copyTo(ByteBuffer src, ByteBuffer dst) {
+
+        int count = Math.min(src.remaining(), dst.remaining());
+
+        if (src.hasArray()) {
+            dst.put(src.array(), src.arrayOffset() + src.position(), count);
+        }
+        else {
+            ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + count);
+            dst.put(slice);
+        }
+    }
+
+
+    /**
+     * Write data to client using handleWrite(..)
+     * <br>
+     * Можно вызывать из любого потока - данные встают в очередь соединения
+     * и уходят в порядке поступления
+     */
+    private void writeChannel(SelectionKey key, ByteBuffer data) {
+
+        Connection connection = (Connection) key.attachment();
+        if (connection == null) {
+            return;
+        }
+
+        connection.enqueue(data);
+        setInterest(key, SelectionKey.OP_WRITE);
+    }
+
+
+    /**
+     * Вернуть подписку на чтение новых команд.
+     * <br>
+     * Если клиент не успевает забирать ответы (очередь на отправку выше HIGH_WATERMARK) -
+     * чтение приостанавливается, пока очередь не опустится ниже LOW_WATERMARK (см. handleWrite)
+     */
+    private void resumeRead(SelectionKey key) {
+
+        Connection connection = (Connection) key.attachment();
+        if (connection == null) {
+            return;
+        }
+
+        if (connection.isWritable()) {
+            setInterest(key, SelectionKey.OP_READ);
+            return;
+        }
+
+        removeInterest(key, SelectionKey.OP_READ);
+        connection.suspendRead();
+
+        // очередь могла разгрузиться, пока мы выставляли флаг
+        if (connection.isWritable() && connection.resumeRead()) {
+            executeLater(() -> dispatchRead(key));
+        }
+    }
+
+
+    private boolean inReactorThread() {
+        return Thread.currentThread() == thread;
+    }
+
+
+    /**
+     * Разбудить selector, если он еще не был разбужен в этой итерации
+     * <br>
+     * Из потока самого реактора будить не нужно - pendingOps и новые interestOps
+     * и так будут учтены перед следующим select()
+     */
+    private void wakeup() {
+
+        if (!inReactorThread() &&
+            wakenUp.compareAndSet(false, true)) {
+
+            selector.wakeup();
+        }
+    }
+
+
+    private void runPendingOps() {
+
+        Runnable op;
+        while ((op = pendingOps.poll()) != null) {
+            try {
+                op.run();
+            } catch (Exception e) {
+                log.error("pending op", e);
+            }
+        }
+    }
+
+
+    /**
+     * Подписаться на событие
+     * <br>
+     * Из чужого потока изменение копится в Connection и применяется потоком реактора,
+     * несколько изменений одного ключа за итерацию схлопываются в одну операцию
+     */
+    private void setInterest(SelectionKey key, int interest) {
+        changeInterest(key, interest, 0);
+    }
+
+
+    /**
+     * Отписаться от события (см. setInterest)
+     */
+    private void removeInterest(SelectionKey key, int interest) {
+        changeInterest(key, 0, interest);
+    }
+
+
+    private void changeInterest(SelectionKey key, int set, int clear) {
+
+        if (!key.isValid()) {
+            return;
+        }
+
+        // Поток реактора - меняем сразу
+        if (inReactorThread()) {
+            key.interestOps((key.interestOps() | set) & ~clear);
+            return;
+        }
+
+        Connection connection = (Connection) key.attachment();
+        if (connection == null) {
+            return;
+        }
+
+        // Ставим в очередь только первое изменение, остальные дописываются в уже поставленное
+        if (connection.addPendingInterest(set, clear)) {
+            execute(() -> applyPendingInterest(key, connection));
+        }
+    }
+
+
+    private void applyPendingInterest(SelectionKey key, Connection connection) {
+
+        int pending = connection.takePendingInterest();
+
+        if (key.isValid()) {
+            int set = Connection.pendingSet(pending);
+            int clear = Connection.pendingClear(pending);
+
+            // Отписка от OP_WRITE из чужого потока могла устареть:
+            // пока она ждала в очереди, реактор сам поставил что-то на отправку
+            if (!connection.getOutbound().isEmpty()) {
+                clear &= ~SelectionKey.OP_WRITE;
+            }
+            key.interestOps((key.interestOps() | set) & ~clear);
+        }
+    }
+}
@@ -0,0 +1,779 @@
+package ru.geekbrains.netty.selector02.server;
+
+import ru.geekbrains.netty.selector02.server.entities.AdmissionPolicy;
+import ru.geekbrains.netty.selector02.server.entities.DirectoryListing;
+import ru.geekbrains.netty.selector02.server.entities.ListingStream;
+import ru.geekbrains.netty.selector02.server.entities.FileUpload;
+import ru.geekbrains.netty.selector02.server.entities.RoomMessage;
+import ru.geekbrains.netty.selector02.server.metrics.LatencyHistogram;
+import ru.geekbrains.netty.selector02.server.metrics.ServerMetrics;
+import ru.geekbrains.netty.selector02.server.protocol.Frame;
+import ru.geekbrains.netty.selector02.server.protocol.FrameDecoder;
+import ru.geekbrains.netty.selector02.server.protocol.LineDecoder;
+import ru.geekbrains.netty.selector02.server.serverActions.FileReceiver;
+import ru.geekbrains.netty.selector02.server.serverActions.FileSender;
+import ru.geekbrains.netty.selector02.server.serverActions.MappedFileCache;
+import ru.geekbrains.netty.selector02.server.utils.BufferPool;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.management.JMException;
+
+import static org.apache.logging.log4j.util.Unbox.box;
+
+/**
+ * Режим thread-per-connection (-Dfubar.threadPerConnection=true) - для сравнения с реакторами.
+ * <br>
+ * У каждого соединения свой поток и обычные блокирующие чтение и запись:
+ * поток виртуальный (JDK 21+, отключается -Dfubar.virtualThreads=false), иначе - из cached pool.
+ * Долгие команды (диск, sleep) занимают только поток своего соединения, пул и очереди не нужны.
+ * <br>
+ * Команды те же (CommandSet), протокол тот же: текст, BINARY (кадры), PUT, GET, комнаты.
+ * Очереди на отправку нет - ответ пишется в сокет сразу, так что клиент, который не забирает ответы,
+ * тормозит свой поток и тех, кто пишет ему в комнату (в режиме реакторов такие сообщения отбрасываются).
+ * <br>
+ * Простой - как у реакторов (fubar.idleTimeout): чтение ждет не дольше таймаута (SO_TIMEOUT),
+ * соединение, которое за это время ничего не передало и не приняло, закрывается.
+ * ADMISSION здесь не поддерживается (пула нет, долгая команда занимает только свой поток)
+ */
+public class ThreadPerConnectionServer implements Runnable {
+
+    private static final Logger log = LogManager.getLogger(ThreadPerConnectionServer.class);
+
+    private static final int PORT_NUMBER = 8000;
+
+    private static final boolean VIRTUAL_THREADS =
+            Boolean.parseBoolean(System.getProperty("fubar.virtualThreads", "true"));
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    // SO_TIMEOUT - int миллисекунд (таймаут по умолчанию в него не влезает)
+    private static final int IDLE_TIMEOUT_MILLIS =
+            (int) Math.min(TimeUnit.SECONDS.toMillis(Reactor.IDLE_TIMEOUT), Integer.MAX_VALUE);
+
+    private final ServerSocketChannel serverSocketChannel;
+    private final ExecutorService executor = newConnectionExecutor();
+
+    // буферы соединениям не нужны (у каждого свой), пул - только для отчета в метриках
+    private final ServerMetrics metrics = new ServerMetrics(null, new BufferPool(), CommandSet.MEASURED);
+
+    private final FileSender fileSender;
+    private final FileReceiver fileReceiver;
+    private final SessionCommands commands;
+
+    // комната -> кто в ней сейчас
+    private final Map<String, Set<Session>> rooms = new ConcurrentHashMap<>();
+
+    private final AtomicInteger nextId = new AtomicInteger();
+
+
+    ThreadPerConnectionServer() throws IOException {
+
+        String dataRoot = CommandSet.defaultDataRoot();
+        fileSender = new FileSender(dataRoot, new MappedFileCache(metrics));
+        fileReceiver = new FileReceiver(dataRoot);
+        commands = new SessionCommands(dataRoot, metrics);
+
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.socket().bind(new InetSocketAddress("127.0.0.1", PORT_NUMBER));
+
+        try {
+            metrics.register();
+        }
+        catch (JMException e) {
+            log.warn("Метрики не опубликованы в JMX", e);
+        }
+    }
+
+
+    @Override
+    public void run() {
+
+        log.info("Серверо запущено (Порт: {}, поток на соединение)", box(PORT_NUMBER));
+
+        try {
+            while (serverSocketChannel.isOpen()) {
+
+                SocketChannel client = serverSocketChannel.accept();
+                metrics.accepted();
+
+                executor.execute(new Session(client, nextId.getAndIncrement()));
+            }
+        }
+        catch (Exception e) {
+            log.error("Acceptor остановлен", e);
+        }
+    }
+
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() есть только с JDK 21
+     * (а исходники собираются под Java 8) - поэтому через reflection,
+     * на старых JDK - обычные потоки
+     */
+    private static ExecutorService newConnectionExecutor() {
+
+        if (VIRTUAL_THREADS) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                ExecutorService executor = (ExecutorService) factory.invoke(null);
+
+                log.info("Соединения обслуживают виртуальные потоки");
+                return executor;
+            }
+            catch (NoSuchMethodException ignored) {}
+            // JDK 19-20 без --enable-preview
+            catch (Exception e) {
+                log.warn("Виртуальные потоки недоступны: {}", e.toString());
+            }
+        }
+
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("Connection-");
+        threadFactory.setDaemon(true);
+
+        log.info("Соединения обслуживают обычные потоки");
+        return Executors.newCachedThreadPool(threadFactory);
+    }
+
+
+    // ----------------------------------------------------------------------------------------------------
+
+
+    /**
+     * Команды в режиме thread-per-connection: файл пишется прямо в сокет,
+     * комнаты - общая карта, сообщение в комнату пишет поток отправителя
+     */
+    private class SessionCommands extends CommandSet<Session> {
+
+        SessionCommands(String dataRoot, ServerMetrics metrics) {
+            super(dataRoot, metrics);
+        }
+
+        @Override
+        protected int idOf(Session session) {
+            return session.id;
+        }
+
+        @Override
+        protected String send(Session session, String name, long offset, long length) {
+            return session.sendFile(name, offset, length);
+        }
+
+        @Override
+        protected void send(Session session, DirectoryListing listing) {
+            session.sendListing(listing);
+        }
+
+        @Override
+        protected void send(Session session, ByteBuffer chunk) {
+            session.sendChunk(chunk);
+        }
+
+        @Override
+        protected boolean isBinary(Session session) {
+            return session.binary;
+        }
+
+        /**
+         * Запись блокирующая - она сама и тормозит чтение каталога, страница короче page не бывает
+         * (пока соединение живо)
+         */
+        @Override
+        protected boolean isWritable(Session session) {
+            return session.channel.isOpen();
+        }
+
+        @Override
+        protected ListingStream getListing(Session session) {
+            return session.listing;
+        }
+
+        @Override
+        protected void setListing(Session session, ListingStream listing) {
+            session.listing = listing;
+        }
+
+        @Override
+        protected void join(Session session, String room) {
+
+            // compute - атомарно с удалением пустой комнаты в removeMember
+            rooms.compute(room, (r, members) -> {
+                if (members == null) {
+                    members = ConcurrentHashMap.newKeySet();
+                }
+                members.add(session);
+                return members;
+            });
+            session.rooms.add(room);
+        }
+
+        @Override
+        protected void leave(Session session, String room) {
+
+            session.rooms.remove(room);
+            removeMember(room, session);
+        }
+
+        @Override
+        protected void say(RoomMessage message) {
+
+            Set<Session> members = rooms.get(message.getRoom());
+            if (members == null) {
+                return;
+            }
+
+            for (Session member : members) {
+                member.deliver(message);
+            }
+        }
+
+        /**
+         * Пула нет - политике не на что влиять, клиент узнает об этом сразу
+         */
+        @Override
+        protected String setAdmission(Session session, AdmissionPolicy policy) {
+            return "ERR admission not supported in thread-per-connection mode\n";
+        }
+    }
+
+
+    /**
+     * Убрать участника из комнаты, пустую комнату - из rooms
+     * (иначе уникальные имена комнат копились бы без ограничения)
+     */
+    private void removeMember(String room, Session session) {
+
+        rooms.computeIfPresent(room, (r, members) -> {
+            members.remove(session);
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+
+    // ----------------------------------------------------------------------------------------------------
+
+
+    /**
+     * Соединение и его поток
+     */
+    private class Session implements Runnable {
+
+        private final int id;
+        private final SocketChannel channel;
+
+        // свой буфер чтения на все время жизни соединения
+        // (BufferPool кэширует буферы по потокам - с виртуальными потоками кэши пропадали бы вместе с потоками)
+        // heap: читается через InputStream сокета - SO_TIMEOUT действует только на него, не на channel.read()
+        private final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private InputStream input;
+
+        // время последней записи клиенту (System.nanoTime()) - чтение по таймауту не закрывает того,
+        // кто все это время получал данные
+        private volatile long lastWritten = System.nanoTime();
+
+        // недочитанная строка (текстовый режим)
+        private byte[] line = new byte[256];
+        private int lineLength;
+
+        // не null - соединение переключено на кадры (BINARY)
+        private FrameDecoder decoder;
+        private volatile boolean binary;
+
+        private FileUpload upload;
+
+        // постраничный LIST, открытый между страницами
+        private ListingStream listing;
+
+        // Пишут свой поток (ответы, файлы) и чужие (сообщения в комнату).
+        // ReentrantLock, а не synchronized: виртуальный поток, заблокированный в записи внутри synchronized,
+        // держал бы и свой поток-носитель
+        private final ReentrantLock writeLock = new ReentrantLock();
+
+        // комнаты соединения (только свой поток)
+        private final Set<String> rooms = new HashSet<>();
+
+
+        Session(SocketChannel channel, int id) {
+
+            this.channel = channel;
+            this.id = id;
+        }
+
+
+        @Override
+        public void run() {
+
+            metrics.connected();
+
+            if (log.isDebugEnabled()) {
+                log.debug("Подключился новый клиент #{} ({})", box(id), Thread.currentThread());
+            }
+
+            try {
+                channel.socket().setSoTimeout(IDLE_TIMEOUT_MILLIS);
+                input = channel.socket().getInputStream();
+
+                reply(CommandSet.WELCOME);
+
+                in.flip();
+                while (fill()) {
+
+                    if (binary) {
+                        readFrames();
+                    }
+                    else {
+                        readLines();
+                    }
+                }
+
+                if (log.isDebugEnabled()) {
+                    log.debug("{} покинул чат", box(id));
+                }
+            }
+            catch (IOException e) {
+                log.debug("{}: {}", box(id), e.toString());
+            }
+            catch (Exception e) {
+                log.error("{}: соединение закрыто из-за ошибки", box(id), e);
+            }
+            finally {
+                close();
+            }
+        }
+
+
+        /**
+         * Дочитать из сокета, если прочитанное уже разобрано
+         * @return false - клиент закрыл соединение
+         */
+        private boolean fill() throws IOException {
+
+            if (in.hasRemaining()) {
+                return true;
+            }
+
+            int read;
+            while (true) {
+                try {
+                    read = input.read(in.array(), in.arrayOffset(), in.capacity());
+                    break;
+                }
+                catch (SocketTimeoutException e) {
+
+                    if (System.nanoTime() - lastWritten < TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MILLIS)) {
+                        continue;
+                    }
+                    metrics.expired();
+                    log.info("Connection #{} idle for {} sec", box(id), box(Reactor.IDLE_TIMEOUT));
+                    return false;
+                }
+            }
+
+            in.position(0);
+            in.limit(Math.max(read, 0));
+
+            if (read < 0) {
+                return false;
+            }
+            metrics.read(read);
+            return true;
+        }
+
+
+        // ----------------------------------------------------------------------------------------------------
+        // Текстовый протокол
+
+
+        /**
+         * Разобрать все прочитанные строки (недочитанная остается в line)
+         */
+        private void readLines() throws IOException {
+
+            while (in.hasRemaining() && !binary) {
+
+                // Идет прием файла - байты из сокета сразу в файл
+                if (upload != null) {
+                    receiveFile();
+                    continue;
+                }
+
+                int eol = indexOfEol();
+                int end = eol < 0 ? in.limit() : eol;
+
+                appendLine(end - in.position());
+
+                if (eol < 0) {
+                    in.position(end);
+                    return;
+                }
+                in.position(eol + 1);
+
+                String msg = takeLine();
+                if (!msg.isEmpty()) {
+                    processLine(msg);
+                }
+            }
+        }
+
+
+        private void processLine(String msg) throws IOException {
+
+            metrics.messageIn();
+            log.debug("IN: {}", msg);
+
+            // BINARY - дальше в потоке идут кадры (подтверждение еще текстом)
+            if (msg.equalsIgnoreCase("binary")) {
+
+                reply("OK binary\n");
+                decoder = new FrameDecoder();
+                binary = true;
+                return;
+            }
+
+            // PUT <name> <length> - дальше в потоке идет содержимое файла
+            if (FileReceiver.isPut(msg)) {
+
+                String error = fileReceiver.begin(msg, u -> upload = u);
+                if (error != null) {
+                    reply(error);
+                }
+                else if (upload.remaining() == 0) {
+                    finishUpload();
+                }
+                return;
+            }
+
+            executeCommand(msg);
+        }
+
+
+        /**
+         * Текстовый PUT: прочитанные байты файла - в файл
+         */
+        private void receiveFile() throws IOException {
+
+            int count = (int) Math.min(in.remaining(), upload.remaining());
+
+            ByteBuffer chunk = in.duplicate();
+            chunk.limit(in.position() + count);
+            in.position(in.position() + count);
+
+            try {
+                upload.write(chunk);
+            }
+            catch (IOException e) {
+                log.error("{}: ошибка записи файла", box(id), e);
+                upload.abort();
+                upload = null;
+                // остаток файла придет как мусорные команды - соединение закрываем
+                reply("ERR can't write file\n");
+                throw e;
+            }
+
+            if (upload.remaining() == 0) {
+                finishUpload();
+            }
+        }
+
+
+        private int indexOfEol() {
+
+            for (int i = in.position(); i < in.limit(); i++) {
+                if (in.get(i) == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+
+        private void appendLine(int count) throws IOException {
+
+            if (lineLength + count > LineDecoder.MAX_LINE) {
+                throw new IOException("line too long");
+            }
+
+            if (lineLength + count > line.length) {
+                line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + count));
+            }
+
+            in.duplicate().get(line, lineLength, count);
+            lineLength += count;
+        }
+
+
+        /**
+         * Накопленная строка без пробелов по краям (как LineDecoder)
+         */
+        private String takeLine() {
+
+            int start = 0;
+            int end = lineLength;
+            lineLength = 0;
+
+            while (start < end && (line[start] & 0xFF) <= ' ') {
+                start++;
+            }
+            while (end > start && (line[end - 1] & 0xFF) <= ' ') {
+                end--;
+            }
+            return new String(line, start, end - start, StandardCharsets.UTF_8);
+        }
+
+
+        // ----------------------------------------------------------------------------------------------------
+        // Двоичный протокол
+
+
+        private void readFrames() throws IOException {
+
+            List<Frame> frames = new ArrayList<>();
+            decoder.decode(in, frames);
+
+            for (Frame frame : frames) {
+
+                // Идет прием файла (PUT) - ждем DATA-кадры
+                if (upload != null) {
+
+                    if (frame.getOpcode() == Frame.DATA &&
+                        frame.getPayload().remaining() <= upload.remaining()) {
+
+                        try {
+                            upload.write(frame.getPayload());
+                        }
+                        catch (IOException e) {
+                            log.error("{}: ошибка записи файла", box(id), e);
+                            upload.abort();
+                            upload = null;
+                            reply("ERR can't write file\n");
+                            continue;
+                        }
+
+                        if (upload.remaining() == 0) {
+                            finishUpload();
+                        }
+                        continue;
+                    }
+
+                    // Вместо содержимого файла пришло что-то другое
+                    upload.abort();
+                    upload = null;
+                    reply("ERR upload interrupted\n");
+                }
+
+                if (frame.getOpcode() != Frame.COMMAND) {
+                    reply("ERR unexpected frame: " + frame.getOpcode() + "\n");
+                    continue;
+                }
+
+                String msg = frame.text().trim();
+                metrics.messageIn();
+                log.debug("IN: {}", msg);
+
+                if (FileReceiver.isPut(msg)) {
+
+                    String error = fileReceiver.begin(msg, u -> upload = u);
+                    if (error != null) {
+                        reply(error);
+                    }
+                    else if (upload.remaining() == 0) {
+                        finishUpload();
+                    }
+                    continue;
+                }
+
+                executeCommand(msg);
+            }
+        }
+
+
+        // ----------------------------------------------------------------------------------------------------
+
+
+        private void executeCommand(String msg) throws IOException {
+
+            LatencyHistogram latency = commands.latencyOf(msg);
+            long start = System.nanoTime();
+
+            String res = commands.execute(this, msg);
+
+            if (latency != null) {
+                latency.record(start);
+            }
+
+            if (res != null) {
+                reply(res);
+            }
+        }
+
+
+        private void finishUpload() throws IOException {
+
+            FileUpload done = upload;
+            upload = null;
+
+            String res;
+            try {
+                done.finish();
+                res = "OK " + done.getLength() + "\n";
+            }
+            catch (IOException e) {
+                log.error("{}: ошибка записи файла", box(id), e);
+                done.abort();
+                res = "ERR can't write file\n";
+            }
+            reply(res);
+        }
+
+
+        /**
+         * GET (вызывается из CommandSet в потоке соединения)
+         */
+        private String sendFile(String name, long offset, long length) {
+
+            writeLock.lock();
+            try {
+                String error = fileSender.send(channel, binary, name, offset, length, metrics::written);
+                lastWritten = System.nanoTime();
+                return error;
+            }
+            catch (IOException e) {
+                // клиент отвалился посреди файла - дальше писать некуда, чтение увидит закрытый сокет
+                log.debug("{}: {}", box(id), e.toString());
+                close();
+                return null;
+            }
+            finally {
+                writeLock.unlock();
+            }
+        }
+
+
+        /**
+         * LIST (вызывается из CommandSet в потоке соединения)
+         */
+        private void sendListing(DirectoryListing listing) {
+
+            try {
+                write(listing.payload(binary));
+                metrics.messageOut();
+            }
+            catch (IOException e) {
+                log.debug("{}: {}", box(id), e.toString());
+                close();
+            }
+        }
+
+
+        /**
+         * Кусок страницы LIST с параметрами или ответа HASH (вызывается из CommandSet в потоке соединения)
+         */
+        private void sendChunk(ByteBuffer chunk) {
+
+            try {
+                write(chunk);
+            }
+            catch (IOException e) {
+                log.debug("{}: {}", box(id), e.toString());
+                close();
+            }
+        }
+
+
+        private void reply(String res) throws IOException {
+
+            byte[] bytes = res.getBytes(StandardCharsets.UTF_8);
+
+            if (binary) {
+                write(Frame.encode(res.startsWith("ERR") ? Frame.ERROR : Frame.RESPONSE, bytes));
+            }
+            else {
+                write(ByteBuffer.wrap(bytes));
+            }
+            metrics.messageOut();
+        }
+
+
+        /**
+         * Сообщение в комнату (вызывает поток отправителя)
+         */
+        private void deliver(RoomMessage message) {
+
+            try {
+                write(message.payload(binary));
+                metrics.messageOut();
+            }
+            catch (IOException e) {
+                // получатель отвалился - его поток сам увидит закрытый сокет
+                log.debug("{}: {}", box(id), e.toString());
+            }
+        }
+
+
+        private void write(ByteBuffer data) throws IOException {
+
+            writeLock.lock();
+            try {
+                int count = data.remaining();
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                metrics.written(count);
+                lastWritten = System.nanoTime();
+            }
+            finally {
+                writeLock.unlock();
+            }
+        }
+
+
+        private void close() {
+
+            for (String room : rooms) {
+                removeMember(room, this);
+            }
+            rooms.clear();
+
+            if (upload != null) {
+                upload.abort();
+                upload = null;
+            }
+
+            if (listing != null) {
+                listing.close();
+                listing = null;
+            }
+
+            if (channel.isOpen()) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {}
+
+                metrics.disconnected();
+            }
+        }
+    }
+}
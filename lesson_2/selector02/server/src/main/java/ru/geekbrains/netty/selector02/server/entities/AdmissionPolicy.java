@@ -0,0 +1,42 @@
+package ru.geekbrains.netty.selector02.server.entities;
+
+/**
+ * Что делать с долгой командой соединения, когда все потоки пула заняты.
+ * <br>
+ * Поток реактора в любом случае не ждет: команда либо встает в ограниченную очередь реактора,
+ * либо соединение перестает читаться до освобождения пула, либо клиент сразу получает ошибку
+ */
+public enum AdmissionPolicy {
+
+    // очередь реактора (не больше fubar.admissionQueue команд), очередь полна - REJECT
+    QUEUE,
+    // команда возвращается непрочитанной, соединение не читается, пока в пуле не освободится поток
+    // (клиента тормозит TCP), разбор продолжается с нее же
+    DEFER,
+    // сразу "ERR server busy" (в двоичном режиме - кадр ERROR), следующие команды выполняются как обычно
+    REJECT;
+
+    // Политика новых соединений (-Dfubar.admission=queue|defer|reject)
+    public static final AdmissionPolicy DEFAULT = defaultPolicy();
+
+
+    /**
+     * @return null - нет такой политики
+     */
+    public static AdmissionPolicy parse(String name) {
+
+        for (AdmissionPolicy policy : values()) {
+            if (policy.name().equalsIgnoreCase(name)) {
+                return policy;
+            }
+        }
+        return null;
+    }
+
+
+    private static AdmissionPolicy defaultPolicy() {
+
+        AdmissionPolicy policy = parse(System.getProperty("fubar.admission", "queue"));
+        return policy != null ? policy : QUEUE;
+    }
+}
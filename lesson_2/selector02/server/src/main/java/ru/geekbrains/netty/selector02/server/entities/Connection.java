@@ -1,50 +1,100 @@
 package ru.geekbrains.netty.selector02.server.entities;
 
-import java.io.ByteArrayOutputStream;
-import java.io.RandomAccessFile;
+import ru.geekbrains.netty.selector02.server.metrics.ServerMetrics;
+import ru.geekbrains.netty.selector02.server.protocol.FrameDecoder;
+import ru.geekbrains.netty.selector02.server.protocol.LineDecoder;
+
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.time.Instant;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Connection {
 
+    // Больше стольких байт в очереди на отправку - соединение "не успевает" (isWritable() == false),
+    // меньше LOW_WATERMARK - снова успевает
+    public static final int HIGH_WATERMARK = Integer.getInteger("fubar.writeHighWatermark", 64 * 1024);
+    public static final int LOW_WATERMARK = Integer.getInteger("fubar.writeLowWatermark", 32 * 1024);
+
+    private final int id;
     private SelectionKey key;
     private SocketChannel channel;
-    private ByteBuffer readBuffer;  // буффер на чтение
-    private ByteBuffer writeBuffer; // буффер на запись
-    private Instant time;
-    private ByteBuffer data;        // emulating data(file) needed to be transferred to client
+    // время последней активности клиента (System.nanoTime()), см. TimingWheel
+    private volatile long lastActive = System.nanoTime();
+    private final byte[] echoPrefix;
+    private final ServerMetrics metrics;
 
-    private RandomAccessFile file; // работает с readBuffer/writeBuffer при передаче файла
-    private ByteArrayOutputStream bufferStream; // работает с readBuffer при приеме текстового сообщения
+    // Очередь сообщений на отправку (в порядке поступления):
+    // ByteBuffer или FileRegion (кусок файла, передается через transferTo)
+    private final Queue<Object> outbound = new ConcurrentLinkedQueue<>();
+    // сколько байт лежит в outbound (включая непереданные части файлов)
+    private final AtomicLong outboundBytes = new AtomicLong();
+    private volatile boolean writable = true;
 
+    // handleWrite уже выполняется (в режиме с пулом - защита от двух одновременных отправок)
+    private final AtomicBoolean writing = new AtomicBoolean();
+    // чтение приостановлено, пока клиент не заберет ответы
+    private final AtomicBoolean readSuspended = new AtomicBoolean();
 
-    public Connection(SelectionKey key, Instant time) {
+    private FileUpload upload; // прием файла от клиента (PUT), пока идет - байты из сокета пишутся сразу в файл
 
-        this.key = key;
-        this.channel = (SocketChannel)key.channel();
-        this.readBuffer = ByteBuffer.allocate(ConnectionList.BUFFER_SIZE);
-        this.writeBuffer = ByteBuffer.allocate(ConnectionList.BUFFER_SIZE);
-        this.bufferStream = new ByteArrayOutputStream(ConnectionList.BUFFER_SIZE);
-        this.time = time;
-        this.data = null;
-    }
+    private ListingStream listing; // постраничный LIST, открытый между страницами
+
+    // не null - соединение переключено на двоичный протокол (кадры), хранит недособранный кадр
+    private volatile FrameDecoder decoder;
+    // прочитанные, но еще не выполненные текстовые команды (и недочитанная строка),
+    // создается при первом чтении
+    private LineDecoder lineDecoder;
+    // сколько задач сейчас разбирают текст (handleRead/processInput) - lineDecoder принадлежит им
+    private final AtomicInteger readers = new AtomicInteger();
+    // соединение закрыто (ConnectionList.remove)
+    private volatile boolean closed;
+    // lineDecoder уже вернули в пул (закрытие и конец последнего чтения могут сделать это одновременно)
+    private final AtomicBoolean lineDecoderReleased = new AtomicBoolean();
+    // команда соединения выполняется в пуле - следующие ждут в lineDecoder (inline I/O)
+    private volatile boolean busy;
+    // что делать с долгой командой, когда пул занят (меняется командой ADMISSION)
+    private volatile AdmissionPolicy admission = AdmissionPolicy.DEFAULT;
+
+    // Изменения interestOps, сделанные из чужих потоков и еще не примененные реактором
+    // младшие 8 бит - какие флаги выставить, следующие 8 бит - какие снять
+    private final AtomicInteger pendingInterest = new AtomicInteger();
+    // изменения уже стоят в очереди реактора
+    private final AtomicBoolean interestQueued = new AtomicBoolean();
+
+
+    // Комнаты, в которых состоит соединение (только поток реактора, создается при первом JOIN)
+    private Set<String> rooms;
+
+    // Таймер простоя - двусвязный список слота TimingWheel (трогает только поток реактора)
+    Connection wheelPrev;
+    Connection wheelNext;
+    // тик дедлайна, -1 - таймера нет
+    long wheelTick = -1;
 
-    public ByteBuffer getReadBuffer() {
-        return readBuffer;
-    }
 
-    public ByteBuffer getWriteBuffer() {
-        return writeBuffer;
+    public Connection(SelectionKey key, int id, ServerMetrics metrics) {
+
+        this.id = id;
+        this.metrics = metrics;
+
+        this.key = key;
+        this.channel = (SocketChannel)key.channel();
+        this.echoPrefix = (id + ": ").getBytes();
     }
 
-    public ByteBuffer getData() {
-        return data;
+    public Queue<Object> getOutbound() {
+        return outbound;
     }
 
-    public void setData(ByteBuffer data) {
-        this.data = data;
+    public int getId() {
+        return id;
     }
 
     public SelectionKey getKey() {
@@ -55,14 +105,223 @@ public class Connection {
         return channel;
     }
 
-    public ByteArrayOutputStream getBufferStream() {
-        return bufferStream;
+    public LineDecoder getLineDecoder() {
+        return lineDecoder;
+    }
+
+    public void setLineDecoder(LineDecoder lineDecoder) {
+        this.lineDecoder = lineDecoder;
+    }
+
+    /**
+     * "id: " - начало эхо-ответа
+     */
+    public byte[] getEchoPrefix() {
+        return echoPrefix;
+    }
+
+
+    /**
+     * Клиент что-то передал или принял (можно из любого потока - только запись времени)
+     */
+    public void touch() {lastActive = System.nanoTime();}
+
+    public long getLastActive() {return lastActive;}
+
+    public FileUpload getUpload() {return upload;}
+
+    public void setUpload(FileUpload upload) {this.upload = upload;}
+
+    public ListingStream getListing() {return listing;}
+
+    public void setListing(ListingStream listing) {this.listing = listing;}
+
+    public FrameDecoder getDecoder() {return decoder;}
+
+    public void setDecoder(FrameDecoder decoder) {this.decoder = decoder;}
+
+    public boolean isBinary() {return decoder != null;}
+
+    public Set<String> getRooms() {
+
+        if (rooms == null) {
+            rooms = new HashSet<>();
+        }
+        return rooms;
+    }
+
+    public boolean hasRooms() {return rooms != null && !rooms.isEmpty();}
+
+    public boolean isBusy() {return busy;}
+
+    public void setBusy(boolean busy) {this.busy = busy;}
+
+    public AdmissionPolicy getAdmission() {return admission;}
+
+    public void setAdmission(AdmissionPolicy admission) {this.admission = admission;}
+
+
+    /**
+     * Поставить данные в очередь на отправку (можно из любого потока)
+     */
+    public void enqueue(ByteBuffer data) {
+        add(data, data.remaining());
+    }
+
+    /**
+     * Поставить кусок файла в очередь на отправку (после всего, что уже в очереди)
+     */
+    public void enqueue(FileRegion region) {
+        add(region, region.remaining());
+    }
+
+    private void add(Object msg, long size) {
+
+        outbound.add(msg);
+        metrics.outbound(size);
+
+        if (outboundBytes.addAndGet(size) > HIGH_WATERMARK) {
+            writable = false;
+        }
+    }
+
+    /**
+     * Закрыть файлы, так и не переданные клиенту (при закрытии соединения)
+     */
+    public void releaseOutbound() {
+
+        Object msg;
+        while ((msg = outbound.poll()) != null) {
+            if (msg instanceof FileRegion) {
+                ((FileRegion) msg).close();
+            }
+        }
+        metrics.outbound(-outboundBytes.getAndSet(0));
+    }
+
+    /**
+     * Учесть отправленные байты
+     */
+    public void written(long bytes) {
+
+        metrics.outbound(-bytes);
+
+        if (outboundBytes.addAndGet(-bytes) < LOW_WATERMARK) {
+            writable = true;
+        }
+    }
+
+    /**
+     * Клиент забирает данные быстрее, чем они копятся в очереди на отправку.
+     * <br>
+     * Если false - производителям ответов надо притормозить
+     */
+    public boolean isWritable() {
+        return writable;
+    }
+
+    public long getOutboundBytes() {
+        return outboundBytes.get();
     }
 
+    public boolean beginWrite() {
+        return writing.compareAndSet(false, true);
+    }
+
+    public void endWrite() {
+        writing.set(false);
+    }
 
-    public Instant getTime() {return time;}
+    /**
+     * Начало разбора текста (любой поток) - после него обязательно endRead(), даже если вернул false
+     * @return false - соединение уже закрыто, lineDecoder трогать нельзя
+     */
+    public boolean beginRead() {
+
+        readers.incrementAndGet();
+        return !closed;
+    }
+
+    /**
+     * Конец разбора текста: соединение закрыли, пока читали - lineDecoder отпускает последний читатель
+     */
+    public void endRead() {
+
+        if (readers.decrementAndGet() == 0 && closed) {
+            freeLineDecoder();
+        }
+    }
 
-    public void setTime(Instant time) {this.time = time;}
+    /**
+     * Вернуть накопитель недочитанной строки в пул (при закрытии соединения, поток реактора).
+     * <br>
+     * Если его сейчас разбирает задача из пула - отпустит она сама (см. endRead):
+     * LineDecoder не потокобезопасен
+     */
+    public void releaseLineDecoder() {
 
-    public RandomAccessFile getFile() {return file;}
+        closed = true;
+
+        if (readers.get() == 0) {
+            freeLineDecoder();
+        }
+    }
+
+    private void freeLineDecoder() {
+
+        LineDecoder decoder = lineDecoder;
+        if (decoder != null && lineDecoderReleased.compareAndSet(false, true)) {
+            decoder.release();
+            lineDecoder = null;
+        }
+    }
+
+    public void suspendRead() {
+        readSuspended.set(true);
+    }
+
+    /**
+     * @return true - если чтение было приостановлено и возобновить его должен вызвавший
+     */
+    public boolean resumeRead() {
+        return readSuspended.get() && readSuspended.compareAndSet(true, false);
+    }
+
+
+    /**
+     * Запомнить изменение interestOps (последнее изменение флага побеждает)
+     * @return true - если изменения еще не стоят в очереди реактора и их нужно туда поставить
+     */
+    public boolean addPendingInterest(int set, int clear) {
+
+        int current;
+        int next;
+        do {
+            current = pendingInterest.get();
+            int s = (pendingSet(current) | set) & ~clear;
+            int c = (pendingClear(current) | clear) & ~set;
+            next = s | (c << 8);
+        }
+        while (!pendingInterest.compareAndSet(current, next));
+
+        return interestQueued.compareAndSet(false, true);
+    }
+
+    /**
+     * Забрать накопленные изменения interestOps (вызывается потоком реактора)
+     */
+    public int takePendingInterest() {
+
+        // сначала флаг - то, что добавят после, встанет в очередь заново
+        interestQueued.set(false);
+        return pendingInterest.getAndSet(0);
+    }
+
+    public static int pendingSet(int pending) {
+        return pending & 0xFF;
+    }
+
+    public static int pendingClear(int pending) {
+        return (pending >>> 8) & 0xFF;
+    }
 }
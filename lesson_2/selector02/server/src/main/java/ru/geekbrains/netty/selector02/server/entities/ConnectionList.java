@@ -1,124 +1,192 @@
 package ru.geekbrains.netty.selector02.server.entities;
 
+import ru.geekbrains.netty.selector02.server.metrics.ServerMetrics;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.time.Instant;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.NavigableMap;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.NoSuchElementException;
 
+import static org.apache.logging.log4j.util.Unbox.box;
 
-// ByteBuffer cache for clients
-public class ConnectionList implements Iterable<Map.Entry<Integer, Connection>>{
 
-    static final int BUFFER_SIZE = 1024; // read and write buffer size
-    private static final int ROTTEN_INTERVAL = 100000000; // sec
+/**
+ * Соединения одного реактора.
+ * <br>
+ * Массив слотов, номера освободившихся слотов переиспользуются (стек free list),
+ * id соединения = slot * stride + offset (stride - число реакторов, offset - номер реактора),
+ * так что id не пересекаются между реакторами и по id сразу находится слот.
+ * <br>
+ * Сам Connection лежит в attachment ключа - на горячем пути поиска по id нет вовсе.
+ * add/remove - только в потоке реактора
+ */
+public class ConnectionList implements Iterable<Connection> {
 
+    private static final Logger log = LogManager.getLogger(ConnectionList.class);
 
-    private NavigableMap<Integer, Connection> connList = new ConcurrentSkipListMap<>();
-    private NavigableMap<Instant, Integer> connTimeList = new ConcurrentSkipListMap<>();
+    private static final int INITIAL_CAPACITY = 16;
 
-    public void add(SelectionKey key) {
+    private final int stride;
+    private final int offset;
+    private final ServerMetrics metrics;
 
-        Instant now = Instant.now();
-        Connection connection = new Connection(key, now);
+    private Connection[] slots = new Connection[INITIAL_CAPACITY];
+    // сколько слотов уже выдавалось
+    private int used;
+    private int size;
 
-        int id = (int)key.attachment();
-        connList.put(id, connection);
-        connTimeList.put(now, id);
-    }
+    // освободившиеся слоты
+    private int[] free = new int[INITIAL_CAPACITY];
+    private int freeCount;
 
 
-    public Connection get(int id) {
+    public ConnectionList(int stride, int offset, ServerMetrics metrics) {
 
-        return connList.get(id);
+        this.stride = stride;
+        this.offset = offset;
+        this.metrics = metrics;
     }
 
 
-    public void update(int id) {
+    /**
+     * Создать соединение для ключа (Connection становится attachment ключа)
+     */
+    public Connection add(SelectionKey key) {
 
-        Connection connection = connList.get(id);
+        int slot;
 
-        if (connection != null) {
+        if (freeCount > 0) {
+            slot = free[--freeCount];
+        }
+        else {
+            if (used == slots.length) {
+                Connection[] bigger = new Connection[slots.length * 2];
+                System.arraycopy(slots, 0, bigger, 0, slots.length);
+                slots = bigger;
+            }
+            slot = used++;
+        }
 
+        Connection connection = new Connection(key, slot * stride + offset, metrics);
+        slots[slot] = connection;
+        size++;
+        metrics.connected();
 
-            connTimeList.remove(connection.getTime());
+        key.attach(connection);
+        return connection;
+    }
 
-            Instant now = Instant.now();
-            connection.setTime(now);
 
-            connTimeList.put(now, id);
+    public Connection get(int id) {
+
+        if (id < offset || (id - offset) % stride != 0) {
+            return null;
         }
+
+        int slot = (id - offset) / stride;
+        Connection[] current = slots;
+        return slot < current.length ? current[slot] : null;
     }
 
-    public void remove(int id) {
 
-        Connection connection = connList.get(id);
+    /**
+     * Закрыть соединение и освободить его слот (повторный вызов ничего не делает)
+     */
+    public void remove(Connection connection) {
 
-        if (connection != null) {
+        int id = connection.getId();
+        int slot = (id - offset) / stride;
 
-            System.out.println("Removing connection #" + id);
+        if (slot >= slots.length || slots[slot] != connection) {
+            return;
+        }
 
-            // close socket
-            SocketChannel channel = connection.getChannel();
-            if (channel != null &&
-                channel.isOpen()) {
+        if (log.isDebugEnabled()) {
+            log.debug("Removing connection #{}", box(id));
+        }
 
-                try {
-                    channel.close();
-                } catch (IOException ignored) {}
-            }
+        slots[slot] = null;
+        size--;
+        metrics.disconnected();
 
-            // close file
-            RandomAccessFile file = connection.getFile();
-            if (file != null) {
-                try {
-                    file.close();
-                } catch (IOException ignored) {}
-            }
-
-            connTimeList.remove(connection.getTime());
+        if (freeCount == free.length) {
+            int[] bigger = new int[free.length * 2];
+            System.arraycopy(free, 0, bigger, 0, free.length);
+            free = bigger;
         }
-        connList.remove(id);
-    }
+        free[freeCount++] = slot;
 
-    /**
-     * Удаляет протухшие ключи
-     */
-    public void removeRotten() {
+        // close socket
+        SocketChannel channel = connection.getChannel();
+        if (channel != null &&
+            channel.isOpen()) {
 
-        //System.out.println("Removing rotten comnnections ...");
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
 
-        Instant label = Instant.now().minusSeconds(ROTTEN_INTERVAL);
+        // abort file upload
+        FileUpload upload = connection.getUpload();
+        if (upload != null) {
+            upload.abort();
+            connection.setUpload(null);
+        }
+
+        // close unfinished paged listing
+        ListingStream listing = connection.getListing();
+        if (listing != null) {
+            listing.close();
+            connection.setListing(null);
+        }
 
-        NavigableMap<Instant, Integer> rotten = connTimeList.headMap(label , true);
+        // close files queued for transfer
+        connection.releaseOutbound();
 
-        Iterator<Map.Entry<Instant, Integer>> it = rotten.entrySet().iterator();
+        // return partial line accumulator to the pool (idle expiry, write errors - every close path;
+        // now or when the running read job ends)
+        connection.releaseLineDecoder();
+    }
 
-        while(it.hasNext()) {
 
-            Map.Entry<Instant, Integer> entry = it.next();
-            int id = entry.getValue();
+    public int size() {
+        return size;
+    }
 
-            // remove from connList
-            remove(id);
 
-            // remove from connTimeList
-            it.remove();
+    @Override
+    public Iterator<Connection> iterator() {
 
+        return new Iterator<Connection>() {
 
-        }
-    }
+            private int slot = advance(0);
 
+            private int advance(int from) {
+                while (from < used && slots[from] == null) {
+                    from++;
+                }
+                return from;
+            }
 
+            @Override
+            public boolean hasNext() {
+                return slot < used;
+            }
 
-    @Override
-    public Iterator<Map.Entry<Integer,Connection>> iterator() {
+            @Override
+            public Connection next() {
 
-        return connList.entrySet().iterator();
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Connection connection = slots[slot];
+                slot = advance(slot + 1);
+                return connection;
+            }
+        };
     }
-
 }
@@ -0,0 +1,78 @@
+package ru.geekbrains.netty.selector02.server.entities;
+
+import ru.geekbrains.netty.selector02.server.protocol.Frame;
+import ru.geekbrains.netty.selector02.server.protocol.FrameDecoder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Ответ на LIST для одного каталога.
+ * <br>
+ * Кодируется один раз (текстом и кадрами) в read-only direct буферы и лежит в DirectoryCache,
+ * пока каталог не изменится - каждому клиенту в очередь встает только duplicate()
+ * <br>
+ * Формат - как у постраничного LIST (см. ListingStream): записи "- name", в конце "OK END".
+ * Двоичный протокол: записи - DATA-кадрами (не длиннее FrameDecoder.MAX_PAYLOAD), "OK END" - кадром RESPONSE
+ */
+public class DirectoryListing {
+
+    public static final String END = "OK END\n";
+
+    private final ByteBuffer text;
+    private final ByteBuffer frame;
+
+
+    /**
+     * @param listing записи каталога ("- name\n" на файл, см. ListingStream.entry)
+     */
+    public DirectoryListing(String listing) {
+
+        byte[] bytes = listing.getBytes(StandardCharsets.UTF_8);
+        byte[] end = END.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer text = ByteBuffer.allocateDirect(bytes.length + end.length);
+        text.put(bytes);
+        text.put(end);
+        text.flip();
+        this.text = text.asReadOnlyBuffer();
+
+        this.frame = frames(bytes, end).asReadOnlyBuffer();
+    }
+
+
+    private static ByteBuffer frames(byte[] bytes, byte[] end) {
+
+        int chunks = (bytes.length + FrameDecoder.MAX_PAYLOAD - 1) / FrameDecoder.MAX_PAYLOAD;
+
+        ByteBuffer frames = ByteBuffer.allocateDirect(
+                chunks * Frame.HEADER_SIZE + bytes.length + Frame.HEADER_SIZE + end.length);
+
+        for (int position = 0; position < bytes.length; position += FrameDecoder.MAX_PAYLOAD) {
+
+            int chunk = Math.min(bytes.length - position, FrameDecoder.MAX_PAYLOAD);
+            frames.put(Frame.header(Frame.DATA, chunk));
+            frames.put(bytes, position, chunk);
+        }
+
+        frames.put(Frame.header(Frame.RESPONSE, end.length));
+        frames.put(end);
+        frames.flip();
+        return frames;
+    }
+
+
+    /**
+     * Данные для очереди одного клиента
+     */
+    public ByteBuffer payloadFor(Connection connection) {
+        return payload(connection.isBinary());
+    }
+
+    /**
+     * @param binary клиент на двоичном протоколе (DATA-кадры и RESPONSE), иначе - текст
+     */
+    public ByteBuffer payload(boolean binary) {
+        return (binary ? frame : text).duplicate();
+    }
+}
@@ -0,0 +1,101 @@
+package ru.geekbrains.netty.selector02.server.entities;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Кусок файла, стоящий в очереди на отправку клиенту.
+ * <br>
+ * Передается через FileChannel.transferTo - ядро копирует данные из файла в сокет само,
+ * минуя ByteBuffer'ы в java heap. Позиция передачи хранится здесь же,
+ * если сокет затопился - продолжаем с нее по OP_WRITE
+ */
+public class FileRegion {
+
+    private final RandomAccessFile file;
+    private final FileChannel fileChannel;
+    private long position;
+    private final long end;
+    // файл закрывается после передачи этого куска (последний кусок файла)
+    private final boolean closeFile;
+
+
+    /**
+     * @param file открытый на чтение файл (закрывается после передачи)
+     * @param position с какого байта передавать
+     * @param count сколько байт передать
+     */
+    public FileRegion(RandomAccessFile file, long position, long count) {
+        this(file, position, count, true);
+    }
+
+    /**
+     * @param closeFile закрывать ли файл после передачи
+     *                  (false - файл передается несколькими кусками и это не последний)
+     */
+    public FileRegion(RandomAccessFile file, long position, long count, boolean closeFile) {
+
+        this.file = file;
+        this.fileChannel = file.getChannel();
+        this.position = position;
+        this.end = position + count;
+        this.closeFile = closeFile;
+    }
+
+
+    /**
+     * Передать в канал сколько получится
+     * @return сколько байт передано (0 - сокет затопился)
+     * @throws EOFException файл укоротили, пока передавали - клиент ждет больше, чем осталось в файле
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+
+        long total = 0;
+
+        while (position < end) {
+
+            long sent = fileChannel.transferTo(position, end - position, target);
+            if (sent <= 0) {
+                // 0 на конце файла - не затопленный сокет: OP_WRITE крутился бы вхолостую
+                if (position >= fileChannel.size()) {
+                    throw new EOFException("file truncated during transfer");
+                }
+                break;
+            }
+            position += sent;
+            total += sent;
+        }
+        return total;
+    }
+
+    public boolean isDone() {
+        return position >= end;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public long remaining() {
+        return end - position;
+    }
+
+    /**
+     * Кусок передан - закрыть файл, если это последний кусок
+     */
+    public void done() {
+
+        if (closeFile) {
+            close();
+        }
+    }
+
+    public void close() {
+        try {
+            file.close();
+        } catch (IOException ignored) {}
+    }
+}
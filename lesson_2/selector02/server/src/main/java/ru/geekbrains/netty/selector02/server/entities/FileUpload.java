@@ -0,0 +1,110 @@
+package ru.geekbrains.netty.selector02.server.entities;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Прием файла от клиента (PUT).
+ * <br>
+ * Пишем во временный файл рядом с целевым, по окончании приема - переименовываем,
+ * так что недокачанный файл никогда не виден под своим именем.
+ * <br>
+ * Временный файл "name.N.part" создается с обычными правами (по umask, как и любой файл сервера) -
+ * после переименования они остаются у файла. В LIST временные файлы не попадают (см. isPart)
+ */
+public class FileUpload {
+
+    // окончание имени временного файла
+    public static final String PART_SUFFIX = ".part";
+
+    private static final AtomicLong serials = new AtomicLong();
+
+    private final Path target;
+    private final Path temp;
+    private final FileChannel fileChannel;
+    private final long length;
+    private long remaining;
+
+
+    public FileUpload(Path target, long length) throws IOException {
+
+        this.target = target;
+        this.length = length;
+        this.remaining = length;
+        this.temp = createTemp(target);
+        this.fileChannel = FileChannel.open(temp, StandardOpenOption.WRITE);
+    }
+
+
+    /**
+     * Временный файл рядом с целевым (createTempFile не подходит - он создает файл с правами 0600)
+     */
+    private static Path createTemp(Path target) throws IOException {
+
+        String name = target.getFileName().toString();
+
+        // имя могло остаться от прошлого запуска сервера - берем следующее
+        while (true) {
+            try {
+                return Files.createFile(target.resolveSibling(name + "." + serials.incrementAndGet() + PART_SUFFIX));
+            }
+            catch (FileAlreadyExistsException ignored) {}
+        }
+    }
+
+
+    /**
+     * Имя временного файла недокачанного PUT (в LIST не показывается)
+     */
+    public static boolean isPart(String fileName) {
+        return fileName.endsWith(PART_SUFFIX);
+    }
+
+
+    /**
+     * Записать в файл все содержимое src
+     */
+    public void write(ByteBuffer src) throws IOException {
+
+        int count = src.remaining();
+        while (src.hasRemaining()) {
+            fileChannel.write(src);
+        }
+        remaining -= count;
+    }
+
+    /**
+     * Файл принят целиком - переименовываем во целевой
+     */
+    public void finish() throws IOException {
+
+        fileChannel.close();
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Прием прерван - удаляем недокачанное
+     */
+    public void abort() {
+
+        try {
+            fileChannel.close();
+            Files.deleteIfExists(temp);
+        } catch (IOException ignored) {}
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long remaining() {
+        return remaining;
+    }
+}
@@ -0,0 +1,251 @@
+package ru.geekbrains.netty.selector02.server.entities;
+
+import ru.geekbrains.netty.selector02.server.protocol.Frame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Открытый постраничный LIST (LIST с параметрами). LIST без параметров отвечает в том же формате
+ * (записи и "OK END"), но целиком и из кэша (см. DirectoryListing).
+ * <br>
+ * Каталог читается DirectoryStream'ом по мере отправки, записи уходят клиенту кусками по CHUNK_SIZE -
+ * в памяти никогда не лежит весь список. Между страницами поток остается открытым в соединении,
+ * курсор "serial-position-options" продолжает его с того же места. Курсор от другого потока
+ * (переподключились, начали другой LIST) - каталог открывается заново и уже отданные записи пропускаются.
+ * options - отпечаток glob и long: курсор продолжает только LIST с теми же параметрами.
+ * <br>
+ * Запись - строка "- name" (или "- name\tsize\tmtime"), без префикса идут только ответы сервера
+ * ("OK END", "OK NEXT ...", "ERR ..."). Обратная косая черта, перевод строки, CR и табуляция в имени
+ * экранируются как в строке Java - имя файла не притворится ни концом записи, ни ответом.
+ * <br>
+ * Порядок записей - порядок файловой системы: файлы, появившиеся или удаленные между страницами,
+ * могут попасть в список или выпасть из него. Временные файлы недокачанных PUT (FileUpload.isPart) не показываются
+ */
+public class ListingStream implements Closeable {
+
+    // столько байт записей копится перед отправкой
+    public static final int CHUNK_SIZE = 16 * 1024;
+
+    // начало строки-записи
+    public static final String ENTRY_PREFIX = "- ";
+
+    private static final AtomicLong serials = new AtomicLong();
+
+    private final long serial = serials.incrementAndGet();
+    private final DirectoryStream<Path> stream;
+    private final Iterator<Path> iterator;
+    private final String glob;
+    private final boolean details;
+    // отпечаток glob и details для курсора
+    private final String options;
+
+    // сколько записей уже отдано
+    private long position;
+
+
+    /**
+     * @param glob null - все файлы
+     * @param details с размером и временем изменения
+     * @throws IllegalArgumentException неправильный glob
+     */
+    public ListingStream(Path dir, String glob, boolean details) throws IOException {
+
+        this.stream = glob == null ? Files.newDirectoryStream(dir) : Files.newDirectoryStream(dir, glob);
+        this.iterator = stream.iterator();
+        this.glob = glob;
+        this.details = details;
+        this.options = optionsOf(glob, details);
+    }
+
+
+    /**
+     * Курсор для продолжения с текущего места
+     */
+    public String cursor() {
+        return serial + "-" + position + "-" + options;
+    }
+
+    /**
+     * Курсор выдан этим потоком, указывает на его текущее место, и LIST продолжается с теми же параметрами
+     */
+    public boolean resumes(String cursor, String glob, boolean details) {
+
+        return Objects.equals(this.glob, glob) &&
+               this.details == details &&
+               cursor().equals(cursor);
+    }
+
+    /**
+     * Сколько записей уже отдано по курсору
+     * @return -1 - курсор неправильный или выдан для LIST с другими glob/long
+     */
+    public static long positionOf(String cursor, String glob, boolean details) {
+
+        String[] parts = cursor.split("-");
+        if (parts.length != 3 || !parts[2].equals(optionsOf(glob, details))) {
+            return -1;
+        }
+
+        try {
+            long position = Long.parseLong(parts[1]);
+            return position < 0 ? -1 : position;
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
+    private static String optionsOf(String glob, boolean details) {
+        return Integer.toHexString(Objects.hash(glob, details));
+    }
+
+
+    /**
+     * Пропустить записи, уже отданные по курсору из другого потока
+     */
+    public void skip(long count) {
+
+        while (position < count && iterator.hasNext()) {
+            iterator.next();
+            position++;
+        }
+    }
+
+
+    /**
+     * Следующая страница.
+     * <br>
+     * Записи кодируются и отдаются в out кусками (текст или DATA-кадры) сразу по мере чтения каталога.
+     * Если после очередного куска соединение перестало успевать (writable == false) -
+     * страница заканчивается раньше: чтение каталога встает до следующего LIST с курсором
+     * @param limit не больше стольких записей
+     * @return true - каталог кончился
+     * @throws java.nio.file.DirectoryIteratorException ошибка чтения каталога
+     */
+    public boolean next(long limit, boolean binary, BooleanSupplier writable, Consumer<ByteBuffer> out) {
+
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream(CHUNK_SIZE + 512);
+        long sent = 0;
+
+        while (sent < limit && iterator.hasNext()) {
+
+            Path entry = iterator.next();
+            position++;
+
+            // временный файл недокачанного PUT (position все равно считаем - skip() идет по тем же записям)
+            if (FileUpload.isPart(entry.getFileName().toString())) {
+                continue;
+            }
+
+            String line = format(entry);
+            if (line == null) {
+                continue;
+            }
+
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            chunk.write(bytes, 0, bytes.length);
+            sent++;
+
+            if (chunk.size() >= CHUNK_SIZE) {
+
+                out.accept(encode(chunk, binary));
+                chunk.reset();
+
+                if (!writable.getAsBoolean()) {
+                    break;
+                }
+            }
+        }
+
+        if (chunk.size() > 0) {
+            out.accept(encode(chunk, binary));
+        }
+        return !iterator.hasNext();
+    }
+
+
+    @Override
+    public void close() {
+
+        try {
+            stream.close();
+        } catch (IOException ignored) {}
+    }
+
+
+    /**
+     * Запись без подробностей "- name\n" (и для LIST без параметров, см. DirectoryReader)
+     */
+    public static String entry(String fileName) {
+        return ENTRY_PREFIX + escape(fileName) + "\n";
+    }
+
+
+    /**
+     * "- name\n" или "- name\tsize\tmtime\n" (null - файл успели удалить)
+     */
+    private String format(Path entry) {
+
+        if (!details) {
+            return entry(entry.getFileName().toString());
+        }
+
+        String name = ENTRY_PREFIX + escape(entry.getFileName().toString());
+
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+            return name + "\t" + attrs.size() + "\t" + attrs.lastModifiedTime() + "\n";
+        }
+        catch (NoSuchFileException e) {
+            return null;
+        }
+        catch (IOException e) {
+            return name + "\t?\t?\n";
+        }
+    }
+
+
+    private static String escape(String name) {
+
+        // обычно экранировать нечего - без копирования
+        if (name.indexOf('\\') < 0 && name.indexOf('\n') < 0 && name.indexOf('\r') < 0 && name.indexOf('\t') < 0) {
+            return name;
+        }
+
+        StringBuilder sb = new StringBuilder(name.length() + 8);
+        for (int i = 0; i < name.length(); i++) {
+
+            char c = name.charAt(i);
+            switch (c) {
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:   sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+
+    private static ByteBuffer encode(ByteArrayOutputStream chunk, boolean binary) {
+
+        byte[] bytes = chunk.toByteArray();
+        return binary ? Frame.encode(Frame.DATA, bytes) : ByteBuffer.wrap(bytes);
+    }
+}
@@ -0,0 +1,163 @@
+package ru.geekbrains.netty.selector02.server.entities;
+
+import ru.geekbrains.netty.selector02.server.protocol.Frame;
+import ru.geekbrains.netty.selector02.server.protocol.FrameDecoder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.Consumer;
+
+/**
+ * Дерево хэшей файла (ответ на HASH).
+ * <br>
+ * Листья - SHA-256(0x00 || блок), узлы - SHA-256(0x01 || левый || правый),
+ * непарный последний узел уровня поднимается выше как есть (префиксы не дают выдать узел за лист).
+ * У пустого файла блоков нет, корень - SHA-256 от пустой строки.
+ * <br>
+ * Хранятся только листья и корень - клиенту для сверки кусков нужны они, промежуточные уровни
+ * он при желании пересчитает сам
+ */
+public class MerkleTree {
+
+    public static final byte LEAF = 0x00;
+    public static final byte NODE = 0x01;
+
+    // строка хэша блока: 64 hex + '\n'
+    private static final int LINE = 65;
+    // столько строк в одном DATA-кадре (кадр не длиннее FrameDecoder.MAX_PAYLOAD, строки не режутся)
+    private static final int LINES_PER_FRAME = FrameDecoder.MAX_PAYLOAD / LINE;
+
+    private final long size;
+    private final long modified;
+    private final int blockSize;
+    private final byte[][] leaves;
+    private final byte[] root;
+
+
+    /**
+     * @param modified mtime файла, по которому считалось дерево (millis)
+     * @param leaves хэши блоков по порядку
+     */
+    public MerkleTree(long size, long modified, int blockSize, byte[][] leaves) {
+
+        this.size = size;
+        this.modified = modified;
+        this.blockSize = blockSize;
+        this.leaves = leaves;
+        this.root = root(leaves);
+    }
+
+
+    /**
+     * Дерево посчитано по этой версии файла
+     */
+    public boolean matches(long size, long modified) {
+        return this.size == size && this.modified == modified;
+    }
+
+
+    /**
+     * Текстовый ответ: header(), затем по строке на хэш блока (hex)
+     */
+    public String format() {
+
+        StringBuilder sb = new StringBuilder(64 + leaves.length * LINE);
+
+        sb.append(header());
+        for (byte[] leaf : leaves) {
+            hex(sb, leaf).append('\n');
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * "OK &lt;size&gt; &lt;blockSize&gt; &lt;blocks&gt; &lt;root&gt;\n"
+     */
+    public String header() {
+
+        StringBuilder sb = new StringBuilder(128);
+
+        sb.append("OK ").append(size)
+          .append(' ').append(blockSize)
+          .append(' ').append(leaves.length)
+          .append(' ');
+        return hex(sb, root).append('\n').toString();
+    }
+
+
+    /**
+     * Двоичный ответ: кадр RESPONSE с header(), затем DATA-кадры со строками хэшей блоков
+     * (blocks * 65 байт всего - хэшей у большого файла больше, чем влезает в один кадр)
+     */
+    public void frames(Consumer<ByteBuffer> out) {
+
+        out.accept(Frame.encode(Frame.RESPONSE, header().getBytes(StandardCharsets.UTF_8)));
+
+        for (int from = 0; from < leaves.length; from += LINES_PER_FRAME) {
+
+            int to = Math.min(leaves.length, from + LINES_PER_FRAME);
+
+            StringBuilder sb = new StringBuilder((to - from) * LINE);
+            for (int i = from; i < to; i++) {
+                hex(sb, leaves[i]).append('\n');
+            }
+            out.accept(Frame.encode(Frame.DATA, sb.toString().getBytes(StandardCharsets.US_ASCII)));
+        }
+    }
+
+
+    public static MessageDigest sha256() {
+
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // SHA-256 обязан быть в любой JRE
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    private static byte[] root(byte[][] leaves) {
+
+        MessageDigest digest = sha256();
+
+        if (leaves.length == 0) {
+            return digest.digest();
+        }
+
+        byte[][] level = leaves;
+        while (level.length > 1) {
+
+            byte[][] next = new byte[(level.length + 1) / 2][];
+
+            for (int i = 0; i < next.length; i++) {
+
+                int left = 2 * i;
+                if (left + 1 == level.length) {
+                    next[i] = level[left];
+                    continue;
+                }
+                digest.update(NODE);
+                digest.update(level[left]);
+                digest.update(level[left + 1]);
+                next[i] = digest.digest();
+            }
+            level = next;
+        }
+        return level[0];
+    }
+
+
+    private static StringBuilder hex(StringBuilder sb, byte[] bytes) {
+
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16))
+              .append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb;
+    }
+}
@@ -0,0 +1,81 @@
+package ru.geekbrains.netty.selector02.server.entities;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Подписки на комнаты соединений одного реактора (комната -> подписчики).
+ * <br>
+ * У каждого реактора свой индекс, используется только из потока реактора (без синхронизации):
+ * сообщение в комнату передается каждому реактору один раз,
+ * и тот раздает его своим подписчикам сам
+ */
+public class RoomIndex {
+
+    private final Map<String, Set<Connection>> rooms = new HashMap<>();
+
+
+    /**
+     * @return false - соединение уже в комнате
+     */
+    public boolean join(String room, Connection connection) {
+
+        if (!connection.getRooms().add(room)) {
+            return false;
+        }
+
+        rooms.computeIfAbsent(room, k -> new HashSet<>()).add(connection);
+        return true;
+    }
+
+
+    /**
+     * @return false - соединения не было в комнате
+     */
+    public boolean leave(String room, Connection connection) {
+
+        if (!connection.getRooms().remove(room)) {
+            return false;
+        }
+
+        Set<Connection> subscribers = rooms.get(room);
+        if (subscribers != null) {
+            subscribers.remove(connection);
+            // пустые комнаты не храним
+            if (subscribers.isEmpty()) {
+                rooms.remove(room);
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Выйти из всех комнат (соединение закрывается)
+     */
+    public void leaveAll(Connection connection) {
+
+        if (!connection.hasRooms()) {
+            return;
+        }
+
+        for (String room : connection.getRooms().toArray(new String[0])) {
+            leave(room, connection);
+        }
+    }
+
+
+    public Set<Connection> subscribers(String room) {
+
+        Set<Connection> subscribers = rooms.get(room);
+        return subscribers != null ? subscribers : Collections.emptySet();
+    }
+
+
+    public int size() {
+        return rooms.size();
+    }
+}
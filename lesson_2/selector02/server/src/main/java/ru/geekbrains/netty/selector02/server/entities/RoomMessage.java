@@ -0,0 +1,57 @@
+package ru.geekbrains.netty.selector02.server.entities;
+
+import ru.geekbrains.netty.selector02.server.protocol.Frame;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Сообщение в комнату (SAY).
+ * <br>
+ * Кодируется один раз (текстом и кадром EVENT для двоичного протокола) в read-only direct буферы,
+ * каждому подписчику в очередь встает только duplicate() - своя позиция поверх общих байт
+ */
+public class RoomMessage {
+
+    private final String room;
+    private final ByteBuffer text;
+    private final ByteBuffer frame;
+
+
+    public RoomMessage(String room, String message) {
+
+        this.room = room;
+
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer text = ByteBuffer.allocateDirect(bytes.length);
+        text.put(bytes);
+        text.flip();
+        this.text = text.asReadOnlyBuffer();
+
+        ByteBuffer frame = ByteBuffer.allocateDirect(Frame.HEADER_SIZE + bytes.length);
+        frame.put(Frame.header(Frame.EVENT, bytes.length));
+        frame.put(bytes);
+        frame.flip();
+        this.frame = frame.asReadOnlyBuffer();
+    }
+
+
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * Данные для очереди одного подписчика
+     */
+    public ByteBuffer payloadFor(Connection connection) {
+        return payload(connection.isBinary());
+    }
+
+    /**
+     * @param binary получатель на двоичном протоколе (кадр EVENT), иначе - текст
+     */
+    public ByteBuffer payload(boolean binary) {
+        return (binary ? frame : text).duplicate();
+    }
+}
@@ -0,0 +1,162 @@
+package ru.geekbrains.netty.selector02.server.entities;
+
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel - таймеры простоя соединений.
+ * <br>
+ * Принадлежит реактору и используется только из его потока (без синхронизации).
+ * Время разбито на тики, слот колеса = номер тика по модулю размера колеса,
+ * соединение лежит в слоте своего дедлайна (списки - прямо в Connection, без лишних объектов).
+ * <br>
+ * Активность клиента (Connection.touch()) таймер не трогает - пишет только время.
+ * Когда подходит тик соединения, дедлайн пересчитывается: если клиент с тех пор что-то делал -
+ * соединение переносится в новый слот, иначе - протухло
+ */
+public class TimingWheel {
+
+    private final Connection[] slots;
+    private final int mask;
+
+    private final long tickNanos;
+    private final long timeoutNanos;
+    private final long startTime;
+
+    // последний обработанный тик
+    private long currentTick;
+    private int size;
+
+
+    /**
+     * @param wheelSize количество слотов (степень двойки)
+     * @param tickNanos длительность тика
+     * @param timeoutNanos через сколько простоя соединение закрывается
+     */
+    public TimingWheel(int wheelSize, long tickNanos, long timeoutNanos) {
+
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("wheelSize must be a power of two: " + wheelSize);
+        }
+
+        this.slots = new Connection[wheelSize];
+        this.mask = wheelSize - 1;
+        this.tickNanos = tickNanos;
+        this.timeoutNanos = Math.max(timeoutNanos, tickNanos);
+        this.startTime = System.nanoTime();
+    }
+
+
+    /**
+     * Поставить таймер простоя нового соединения
+     */
+    public void add(Connection connection) {
+        schedule(connection, connection.getLastActive() + timeoutNanos);
+    }
+
+
+    /**
+     * Снять таймер (соединение закрыто)
+     */
+    public void cancel(Connection connection) {
+
+        if (connection.wheelTick < 0) {
+            return;
+        }
+
+        int slot = (int)(connection.wheelTick & mask);
+
+        if (connection.wheelPrev != null) {
+            connection.wheelPrev.wheelNext = connection.wheelNext;
+        }
+        else {
+            slots[slot] = connection.wheelNext;
+        }
+
+        if (connection.wheelNext != null) {
+            connection.wheelNext.wheelPrev = connection.wheelPrev;
+        }
+
+        connection.wheelPrev = null;
+        connection.wheelNext = null;
+        connection.wheelTick = -1;
+        size--;
+    }
+
+
+    /**
+     * Обработать все тики, прошедшие к моменту now
+     * @param expired вызывается для каждого протухшего соединения (таймер уже снят)
+     */
+    public void advance(long now, Consumer<Connection> expired) {
+
+        long tick = (now - startTime) / tickNanos;
+
+        while (currentTick < tick) {
+
+            currentTick++;
+
+            Connection connection = slots[(int)(currentTick & mask)];
+
+            while (connection != null) {
+
+                Connection next = connection.wheelNext;
+
+                // (wheelTick > currentTick - дедлайн на одном из следующих оборотов колеса)
+                if (connection.wheelTick <= currentTick) {
+
+                    cancel(connection);
+
+                    long deadline = connection.getLastActive() + timeoutNanos;
+                    if (deadline > now) {
+                        schedule(connection, deadline);
+                    }
+                    else {
+                        expired.accept(connection);
+                    }
+                }
+                connection = next;
+            }
+        }
+    }
+
+
+    /**
+     * Сколько миллисекунд до следующего тика (таймаут для select()),
+     * 0 - таймеров нет, ждать можно сколько угодно
+     */
+    public long millisToNextTick(long now) {
+
+        if (size == 0) {
+            return 0;
+        }
+
+        long next = startTime + (currentTick + 1) * tickNanos;
+        return Math.max(1, (next - now + 999_999) / 1_000_000);
+    }
+
+
+    public int size() {
+        return size;
+    }
+
+
+    private void schedule(Connection connection, long deadline) {
+
+        long tick = (deadline - startTime + tickNanos - 1) / tickNanos;
+        if (tick <= currentTick) {
+            tick = currentTick + 1;
+        }
+
+        int slot = (int)(tick & mask);
+
+        connection.wheelTick = tick;
+        connection.wheelPrev = null;
+        connection.wheelNext = slots[slot];
+
+        if (slots[slot] != null) {
+            slots[slot].wheelPrev = connection;
+        }
+        slots[slot] = connection;
+        size++;
+    }
+}
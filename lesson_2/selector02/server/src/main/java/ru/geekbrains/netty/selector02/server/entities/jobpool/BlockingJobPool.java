@@ -4,6 +4,7 @@ import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
@@ -40,6 +41,11 @@ public class BlockingJobPool<T> extends BaseJobPool {
 
     private final AtomicInteger threadCount = new AtomicInteger(0);
 
+    // statistics
+    private final LongAdder completedCount = new LongAdder();
+    // total time callers spent waiting for a free thread
+    private final LongAdder waitNanos = new LongAdder();
+
     /**
      * Pool of worker threads
      * @param poolSize pool size (count of threads)
@@ -68,7 +74,13 @@ public class BlockingJobPool<T> extends BaseJobPool {
     public void add(Supplier<T> job) {
 
         try {
-            semaphore.acquire();
+            // fair tryAcquire(0, ...) - don't overtake waiting threads, measure only real waits
+            if (!semaphore.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+
+                long start = System.nanoTime();
+                semaphore.acquire();
+                waitNanos.add(System.nanoTime() - start);
+            }
 
             threadCount.getAndIncrement();
 
@@ -86,6 +98,36 @@ public class BlockingJobPool<T> extends BaseJobPool {
     }
 
 
+    /**
+     * Add job to execute if pool has a free thread
+     * <br>
+     * Never blocks (safe to call from selector thread)
+     * @param job Supplier
+     * @return false - all threads are busy, job was not added
+     */
+    public boolean tryAdd(Supplier<T> job) {
+
+        // fair tryAcquire(0, ...) - don't overtake threads waiting in add(...)
+        try {
+            if (!semaphore.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        threadCount.getAndIncrement();
+
+        CompletableFuture.supplyAsync(job, threadPool)
+                .handle(this::handle)
+                .thenAccept(this::callback);
+
+        return true;
+    }
+
+
     // ----------------------------------------------------------------------------------------------------
 
 
@@ -121,11 +163,13 @@ public class BlockingJobPool<T> extends BaseJobPool {
      */
     private void callback(T msg) {
 
-        // notify caller about job done
-        callback.accept(msg);
-
+        // free thread first - callback may want to tryAdd(...) next job
         threadCount.getAndDecrement();
+        completedCount.increment();
         semaphore.release();
+
+        // notify caller about job done
+        callback.accept(msg);
     }
 
 
@@ -133,6 +177,34 @@ public class BlockingJobPool<T> extends BaseJobPool {
         return threadCount.get() == threadPool.getMaximumPoolSize();
     }
 
+    /**
+     * Jobs running now
+     */
+    public int getActiveCount() {
+        return threadCount.get();
+    }
+
+    /**
+     * Threads blocked in add(...) waiting for a free pool thread
+     */
+    public int getQueuedCount() {
+        return semaphore.getQueueLength();
+    }
+
+    /**
+     * Jobs finished since start
+     */
+    public long getCompletedCount() {
+        return completedCount.sum();
+    }
+
+    /**
+     * Total time callers of add(...) spent waiting for a free pool thread
+     */
+    public long getWaitNanos() {
+        return waitNanos.sum();
+    }
+
 
 
     // ----------------------------------------------------------------------------------------------------
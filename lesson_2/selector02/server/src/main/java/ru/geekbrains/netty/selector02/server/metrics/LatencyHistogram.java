@@ -0,0 +1,122 @@
+package ru.geekbrains.netty.selector02.server.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма времени выполнения команды.
+ * <br>
+ * Корзины - степени двойки микросекунд (корзина i: [2^(i-1), 2^i) мкс),
+ * каждая - LongAdder, так что запись из многих потоков не упирается в одну ячейку памяти.
+ * Перцентили - верхняя граница корзины (точность до двух раз, зато запись - один инкремент)
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+    // 2^39 мкс - больше 6 суток
+    private static final int BUCKETS = 40;
+
+    private final String name;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+
+    public LatencyHistogram(String name) {
+
+        this.name = name;
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+
+    public String getName() {
+        return name;
+    }
+
+
+    /**
+     * Учесть одно выполнение команды
+     * @param startNanos System.nanoTime() перед началом выполнения
+     */
+    public void record(long startNanos) {
+
+        long nanos = System.nanoTime() - startNanos;
+        long micros = nanos / 1000;
+
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+
+        buckets[bucket].increment();
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public long getMeanMicros() {
+
+        long n = count.sum();
+        return n == 0 ? 0 : totalNanos.sum() / n / 1000;
+    }
+
+    @Override
+    public long getMaxMicros() {
+        return maxNanos.get() / 1000;
+    }
+
+    @Override
+    public long getP50Micros() {
+        return percentile(0.5);
+    }
+
+    @Override
+    public long getP90Micros() {
+        return percentile(0.9);
+    }
+
+    @Override
+    public long getP99Micros() {
+        return percentile(0.99);
+    }
+
+    @Override
+    public long getP999Micros() {
+        return percentile(0.999);
+    }
+
+
+    /**
+     * Верхняя граница корзины, в которую попадает заданная доля выполнений (мкс)
+     */
+    private long percentile(double p) {
+
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets[i].sum();
+            total += snapshot[i];
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long)Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(1L << i, getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+}
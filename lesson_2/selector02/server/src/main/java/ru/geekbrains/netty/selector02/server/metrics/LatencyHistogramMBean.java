@@ -0,0 +1,21 @@
+package ru.geekbrains.netty.selector02.server.metrics;
+
+/**
+ * JMX: время выполнения одной команды (микросекунды)
+ */
+public interface LatencyHistogramMBean {
+
+    long getCount();
+
+    long getMeanMicros();
+
+    long getMaxMicros();
+
+    long getP50Micros();
+
+    long getP90Micros();
+
+    long getP99Micros();
+
+    long getP999Micros();
+}
@@ -0,0 +1,358 @@
+package ru.geekbrains.netty.selector02.server.metrics;
+
+import ru.geekbrains.netty.selector02.server.entities.jobpool.BlockingJobPool;
+import ru.geekbrains.netty.selector02.server.utils.BufferPool;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Метрики сервера.
+ * <br>
+ * Пишут все потоки (реакторы, пул, acceptor) - поэтому только LongAdder:
+ * на горячем пути один инкремент своей ячейки, без общей точки синхронизации.
+ * Суммы считаются только при чтении (JMX, команда STATS)
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    public static final String DOMAIN = "ru.geekbrains.netty.selector02";
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder active = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+
+    private final LongAdder selects = new LongAdder();
+    private final LongAdder emptySelects = new LongAdder();
+
+    // сколько байт ждет отправки во всех очередях соединений
+    private final LongAdder outboundBytes = new LongAdder();
+    private final LongAdder roomMessagesDropped = new LongAdder();
+
+    // долгие команды, которым не хватило потока в пуле (см. AdmissionPolicy)
+    private final LongAdder admissionQueued = new LongAdder();
+    private final LongAdder admissionDeferred = new LongAdder();
+    private final LongAdder admissionRejected = new LongAdder();
+
+    // задачи в очередях реакторов, ждущие свободного потока пула, и суммарное время ожидания
+    private final LongAdder jobsQueued = new LongAdder();
+    private final LongAdder jobWaitNanos = new LongAdder();
+
+    // GET: файл отдан из кэша отображений / мимо кэша (см. MappedFileCache)
+    private final LongAdder mappedHits = new LongAdder();
+    private final LongAdder mappedMisses = new LongAdder();
+
+    // время выполнения по командам (заполняется в конструкторе, дальше только читается)
+    private final Map<String, LatencyHistogram> latencies;
+
+    private final BlockingJobPool<?> jobPool;
+    private final BufferPool bufferPool;
+
+
+    /**
+     * @param jobPool пул долгих команд (null - пула нет, режим thread-per-connection)
+     * @param commands команды, для которых считается время выполнения
+     */
+    public ServerMetrics(BlockingJobPool<?> jobPool, BufferPool bufferPool, String... commands) {
+
+        this.jobPool = jobPool;
+        this.bufferPool = bufferPool;
+
+        Map<String, LatencyHistogram> map = new LinkedHashMap<>();
+        for (String command : commands) {
+            map.put(command, new LatencyHistogram(command));
+        }
+        latencies = Collections.unmodifiableMap(map);
+    }
+
+
+    /**
+     * Опубликовать метрики в platform MBeanServer:
+     * DOMAIN:type=Server и DOMAIN:type=CommandLatency,name=&lt;команда&gt;
+     */
+    public void register() throws JMException {
+
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+
+        mbs.registerMBean(this, new ObjectName(DOMAIN + ":type=Server"));
+
+        for (LatencyHistogram histogram : latencies.values()) {
+            mbs.registerMBean(histogram, new ObjectName(DOMAIN + ":type=CommandLatency,name=" + histogram.getName()));
+        }
+    }
+
+
+    // ----------------------------------------------------------------------------------------------------
+    // Запись
+
+    public void accepted() {
+        accepted.increment();
+    }
+
+    public void connected() {
+        active.increment();
+    }
+
+    public void disconnected() {
+        active.decrement();
+    }
+
+    public void expired() {
+        expired.increment();
+    }
+
+    public void read(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void written(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    public void messageIn() {
+        messagesIn.increment();
+    }
+
+    public void messageOut() {
+        messagesOut.increment();
+    }
+
+    /**
+     * @param ready сколько ключей вернул select()
+     */
+    public void selected(int ready) {
+
+        selects.increment();
+        if (ready == 0) {
+            emptySelects.increment();
+        }
+    }
+
+    /**
+     * Изменился объем очереди на отправку (+ поставили, - отправили или выбросили)
+     */
+    public void outbound(long bytes) {
+        outboundBytes.add(bytes);
+    }
+
+    public void roomMessageDropped() {
+        roomMessagesDropped.increment();
+    }
+
+    /**
+     * Задача встала в очередь реактора ждать поток пула
+     */
+    public void jobQueued() {
+        jobsQueued.increment();
+    }
+
+    /**
+     * Задача из очереди реактора запущена в пуле
+     * @param waitNanos сколько ждала в очереди
+     */
+    public void jobStarted(long waitNanos) {
+
+        jobsQueued.decrement();
+        jobWaitNanos.add(waitNanos);
+    }
+
+    public void admissionQueued() {
+        admissionQueued.increment();
+    }
+
+    public void admissionDeferred() {
+        admissionDeferred.increment();
+    }
+
+    public void admissionRejected() {
+        admissionRejected.increment();
+    }
+
+    public void mappedHit() {
+        mappedHits.increment();
+    }
+
+    public void mappedMiss() {
+        mappedMisses.increment();
+    }
+
+    /**
+     * Гистограмма команды (null - для команды время не считается)
+     */
+    public LatencyHistogram latency(String command) {
+        return latencies.get(command);
+    }
+
+
+    // ----------------------------------------------------------------------------------------------------
+    // Чтение
+
+    @Override
+    public long getAcceptedConnections() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return active.sum();
+    }
+
+    @Override
+    public long getExpiredConnections() {
+        return expired.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getSelects() {
+        return selects.sum();
+    }
+
+    @Override
+    public long getEmptySelects() {
+        return emptySelects.sum();
+    }
+
+    @Override
+    public long getOutboundBytes() {
+        return outboundBytes.sum();
+    }
+
+    @Override
+    public long getRoomMessagesDropped() {
+        return roomMessagesDropped.sum();
+    }
+
+    @Override
+    public long getBufferPoolAllocated() {
+        return bufferPool.getAllocated();
+    }
+
+    @Override
+    public int getJobPoolActive() {
+        return jobPool == null ? 0 : jobPool.getActiveCount();
+    }
+
+    @Override
+    public int getJobPoolQueued() {
+        return (int) jobsQueued.sum();
+    }
+
+    @Override
+    public long getJobPoolCompleted() {
+        return jobPool == null ? 0 : jobPool.getCompletedCount();
+    }
+
+    @Override
+    public long getJobPoolWaitMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(jobWaitNanos.sum());
+    }
+
+    @Override
+    public long getAdmissionQueued() {
+        return admissionQueued.sum();
+    }
+
+    @Override
+    public long getAdmissionDeferred() {
+        return admissionDeferred.sum();
+    }
+
+    @Override
+    public long getAdmissionRejected() {
+        return admissionRejected.sum();
+    }
+
+    @Override
+    public long getMappedHits() {
+        return mappedHits.sum();
+    }
+
+    @Override
+    public long getMappedMisses() {
+        return mappedMisses.sum();
+    }
+
+
+    /**
+     * Все метрики текстом, по строке "имя значение" (ответ на команду STATS)
+     */
+    @Override
+    public String report() {
+
+        StringBuilder sb = new StringBuilder(1024);
+
+        line(sb, "connections.accepted", getAcceptedConnections());
+        line(sb, "connections.active", getActiveConnections());
+        line(sb, "connections.expired", getExpiredConnections());
+        line(sb, "bytes.in", getBytesIn());
+        line(sb, "bytes.out", getBytesOut());
+        line(sb, "messages.in", getMessagesIn());
+        line(sb, "messages.out", getMessagesOut());
+        line(sb, "select.calls", getSelects());
+        line(sb, "select.empty", getEmptySelects());
+        line(sb, "outbound.bytes", getOutboundBytes());
+        line(sb, "rooms.dropped", getRoomMessagesDropped());
+        line(sb, "bufferpool.allocated", getBufferPoolAllocated());
+        line(sb, "jobpool.active", getJobPoolActive());
+        line(sb, "jobpool.queued", getJobPoolQueued());
+        line(sb, "jobpool.completed", getJobPoolCompleted());
+        line(sb, "jobpool.wait.us", getJobPoolWaitMicros());
+        line(sb, "admission.queued", getAdmissionQueued());
+        line(sb, "admission.deferred", getAdmissionDeferred());
+        line(sb, "admission.rejected", getAdmissionRejected());
+        line(sb, "mapped.hits", getMappedHits());
+        line(sb, "mapped.misses", getMappedMisses());
+
+        for (LatencyHistogram h : latencies.values()) {
+
+            if (h.getCount() == 0) {
+                continue;
+            }
+            sb.append("latency.").append(h.getName())
+              .append(" count=").append(h.getCount())
+              .append(" mean=").append(h.getMeanMicros())
+              .append(" p50=").append(h.getP50Micros())
+              .append(" p99=").append(h.getP99Micros())
+              .append(" p999=").append(h.getP999Micros())
+              .append(" max=").append(h.getMaxMicros())
+              .append(" us\n");
+        }
+        return sb.toString();
+    }
+
+
+    private static void line(StringBuilder sb, String name, long value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,51 @@
+package ru.geekbrains.netty.selector02.server.metrics;
+
+/**
+ * JMX: счетчики сервера (см. ServerMetrics)
+ */
+public interface ServerMetricsMBean {
+
+    long getAcceptedConnections();
+
+    long getActiveConnections();
+
+    long getExpiredConnections();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getSelects();
+
+    long getEmptySelects();
+
+    long getOutboundBytes();
+
+    long getRoomMessagesDropped();
+
+    long getBufferPoolAllocated();
+
+    int getJobPoolActive();
+
+    int getJobPoolQueued();
+
+    long getJobPoolCompleted();
+
+    long getJobPoolWaitMicros();
+
+    long getAdmissionQueued();
+
+    long getAdmissionDeferred();
+
+    long getAdmissionRejected();
+
+    long getMappedHits();
+
+    long getMappedMisses();
+
+    String report();
+}
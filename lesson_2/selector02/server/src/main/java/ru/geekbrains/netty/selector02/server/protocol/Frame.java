@@ -0,0 +1,82 @@
+package ru.geekbrains.netty.selector02.server.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Кадр двоичного протокола Fubar.
+ * <br>
+ * Формат: [int32 length][byte opcode][payload], length = 1 + длина payload (big-endian).
+ * <br>
+ * Соединение переходит на кадры после текстовой команды "binary" (ответ "OK binary\n" - еще текстом).
+ * <pre>
+ * COMMAND  клиент -> сервер  текст команды (UTF-8), как в текстовом режиме
+ * RESPONSE сервер -> клиент  ответ на команду
+ * ERROR    сервер -> клиент  ошибка выполнения команды
+ * DATA     в обе стороны     кусок содержимого файла (GET / PUT)
+ * EVENT    сервер -> клиент  сообщение, пришедшее не в ответ на команду (SAY в комнату)
+ * </pre>
+ * GET: RESPONSE "OK &lt;size&gt;", затем DATA-кадры общей длиной size.<br>
+ * PUT: COMMAND "put &lt;name&gt; &lt;size&gt;", затем DATA-кадры общей длиной size, ответ RESPONSE "OK &lt;size&gt;"<br>
+ * LIST: записи DATA-кадрами, затем RESPONSE "OK END" (или "OK NEXT &lt;cursor&gt;" - страница LIST с параметрами)<br>
+ * HASH: RESPONSE "OK &lt;size&gt; &lt;blockSize&gt; &lt;blocks&gt; &lt;root&gt;", затем DATA-кадры с хэшами блоков (blocks строк)
+ */
+public class Frame {
+
+    public static final int HEADER_SIZE = 5;
+
+    public static final byte COMMAND = 1;
+    public static final byte RESPONSE = 2;
+    public static final byte ERROR = 3;
+    public static final byte DATA = 4;
+    public static final byte EVENT = 5;
+
+    private final byte opcode;
+    private final ByteBuffer payload;
+
+
+    public Frame(byte opcode, ByteBuffer payload) {
+
+        this.opcode = opcode;
+        this.payload = payload;
+    }
+
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    public ByteBuffer getPayload() {
+        return payload;
+    }
+
+    /**
+     * payload как текст (UTF-8)
+     */
+    public String text() {
+        return StandardCharsets.UTF_8.decode(payload.duplicate()).toString();
+    }
+
+
+    /**
+     * Заголовок кадра, payload передается отдельно (например, кусок файла через transferTo)
+     */
+    public static ByteBuffer header(byte opcode, int payloadLength) {
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(payloadLength + 1).put(opcode);
+        header.flip();
+        return header;
+    }
+
+
+    /**
+     * Кадр целиком
+     */
+    public static ByteBuffer encode(byte opcode, byte[] payload) {
+
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        frame.putInt(payload.length + 1).put(opcode).put(payload);
+        frame.flip();
+        return frame;
+    }
+}
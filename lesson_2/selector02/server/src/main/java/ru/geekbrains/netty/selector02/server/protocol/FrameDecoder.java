@@ -0,0 +1,69 @@
+package ru.geekbrains.netty.selector02.server.protocol;
+
+import ru.geekbrains.netty.selector02.server.utils.LibUtil;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Инкрементальный разбор кадров (см. Frame).
+ * <br>
+ * Живет в Connection между чтениями: кадр, пришедший кусками в разных TCP-сегментах,
+ * дособирается при следующем чтении, а из одного чтения выдаются все целые кадры
+ */
+public class FrameDecoder {
+
+    // Максимальная длина payload одного кадра
+    public static final int MAX_PAYLOAD = 1024 * 1024;
+
+    private final ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_SIZE);
+    private byte opcode;
+
+    // null - читаем заголовок, иначе - payload текущего кадра
+    private ByteBuffer payload;
+
+
+    /**
+     * Разобрать очередную порцию данных
+     * @param in прочитанные из сокета данные (будут вычитаны целиком)
+     * @param out сюда добавляются все собранные целиком кадры
+     * @throws ProtocolException кадр недопустимой длины (соединение надо закрывать)
+     */
+    public void decode(ByteBuffer in, List<Frame> out) throws IOException {
+
+        while (in.hasRemaining()) {
+
+            // заголовок
+            if (payload == null) {
+
+                LibUtil.copyBuffer(in, header);
+                if (header.hasRemaining()) {
+                    return;
+                }
+
+                header.flip();
+                int length = header.getInt();
+                opcode = header.get();
+                header.clear();
+
+                if (length < 1 || length - 1 > MAX_PAYLOAD) {
+                    throw new ProtocolException("Bad frame length: " + length);
+                }
+
+                payload = ByteBuffer.allocate(length - 1);
+            }
+
+            // payload
+            LibUtil.copyBuffer(in, payload);
+            if (payload.hasRemaining()) {
+                return;
+            }
+
+            payload.flip();
+            out.add(new Frame(opcode, payload));
+            payload = null;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package ru.geekbrains.netty.selector02.server.protocol;
+
+import ru.geekbrains.netty.selector02.server.entities.FileUpload;
+import ru.geekbrains.netty.selector02.server.utils.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Разбор текстового протокола на команды (по '\n') без лишних аллокаций.
+ * <br>
+ * Строки ищутся прямо в буфере, прочитанном из сокета (append), и выдаются по одной
+ * как границы внутри него (nextLine) - команду можно сравнить по байтам (lineEquals, lineStartsWith)
+ * и только при необходимости превратить в String (lineString).
+ * <br>
+ * Прочитанные, но еще не выполненные байты (недочитанная строка, команды, ждущие долгую команду)
+ * перед возвратом буфера чтения в пул копируются в накопитель (retain),
+ * который тоже берется из пула и возвращается, как только опустеет
+ */
+public class LineDecoder {
+
+    // Максимальная длина строки команды
+    public static final int MAX_LINE = 64 * 1024;
+
+    private static final int MIN_ACCUMULATOR = 1024;
+
+    private final BufferPool pool;
+
+    // буфер чтения, по которому сейчас идет разбор (не наш - до retain())
+    private ByteBuffer input;
+    // накопитель непрочитанных байт (null - пусто)
+    private ByteBuffer accumulator;
+
+    // текущая строка - [lineStart, lineEnd) в source(), без пробелов по краям
+    private int lineStart;
+    private int lineEnd;
+    // где строка начиналась до разбора (см. unread)
+    private int lineBegin;
+
+
+    public LineDecoder(BufferPool pool) {
+        this.pool = pool;
+    }
+
+
+    /**
+     * Начать разбор прочитанных из сокета данных.
+     * <br>
+     * Если в накопителе ничего нет - разбор идет прямо по in (без копирования),
+     * и до возврата in в пул нужно вызвать retain()
+     */
+    public void append(ByteBuffer in) {
+
+        if (accumulator == null) {
+            input = in;
+            return;
+        }
+
+        ensureCapacity(in.remaining());
+        accumulator.compact();
+        accumulator.put(in);
+        accumulator.flip();
+    }
+
+
+    /**
+     * Буфер чтения сейчас вернется в пул - сохранить неразобранные байты в накопитель
+     */
+    public void retain() {
+
+        if (input != null) {
+
+            if (input.hasRemaining()) {
+                accumulator = pool.acquire(Math.max(input.remaining(), MIN_ACCUMULATOR));
+                accumulator.put(input);
+                accumulator.flip();
+            }
+            input = null;
+        }
+
+        if (accumulator != null && !accumulator.hasRemaining()) {
+            release();
+        }
+    }
+
+
+    /**
+     * Вернуть накопитель в пул (соединение закрывается или переходит на другой протокол)
+     */
+    public void release() {
+
+        pool.release(accumulator);
+        accumulator = null;
+        input = null;
+    }
+
+
+    /**
+     * Перейти к следующей целой строке
+     * @return false - строка еще не пришла целиком
+     */
+    public boolean nextLine() {
+
+        ByteBuffer src = source();
+        if (src == null) {
+            return false;
+        }
+
+        int eol = indexOfEol(src);
+        if (eol < 0) {
+            return false;
+        }
+
+        int start = src.position();
+        int end = eol;
+
+        lineBegin = start;
+
+        // trim
+        while (start < end && (src.get(start) & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (src.get(end - 1) & 0xFF) <= ' ') {
+            end--;
+        }
+
+        lineStart = start;
+        lineEnd = end;
+        src.position(eol + 1);
+        return true;
+    }
+
+
+    /**
+     * Вернуть текущую строку обратно - следующий nextLine() выдаст ее снова
+     * (только до retain()/append())
+     */
+    public void unread() {
+        source().position(lineBegin);
+    }
+
+
+    public int lineLength() {
+        return lineEnd - lineStart;
+    }
+
+
+    /**
+     * Строка совпадает с ascii (без учета регистра, ascii - в нижнем регистре)
+     */
+    public boolean lineEquals(String ascii) {
+        return lineLength() == ascii.length() && lineStartsWith(ascii);
+    }
+
+
+    /**
+     * Строка начинается с ascii (без учета регистра, ascii - в нижнем регистре)
+     */
+    public boolean lineStartsWith(String ascii) {
+
+        if (lineLength() < ascii.length()) {
+            return false;
+        }
+
+        ByteBuffer src = source();
+        for (int i = 0; i < ascii.length(); i++) {
+
+            int b = src.get(lineStart + i);
+            char c = ascii.charAt(i);
+
+            if (b != c && !(c >= 'a' && c <= 'z' && b == c - ('a' - 'A'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Первое слово строки - word (без учета регистра, word - в нижнем регистре)
+     */
+    public boolean firstWordIs(String word) {
+
+        return lineStartsWith(word) &&
+               (lineLength() == word.length() || (source().get(lineStart + word.length()) & 0xFF) <= ' ');
+    }
+
+
+    /**
+     * Скопировать текущую строку в dst
+     */
+    public void copyLine(byte[] dst, int offset) {
+
+        ByteBuffer src = source();
+        for (int i = lineStart; i < lineEnd; i++) {
+            dst[offset++] = src.get(i);
+        }
+    }
+
+
+    /**
+     * Текущая строка как String (когда команду надо разбирать дальше или отдать в другой поток)
+     */
+    public String lineString() {
+
+        byte[] bytes = new byte[lineLength()];
+        copyLine(bytes, 0);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Отдать в принимаемый файл уже прочитанные байты (не больше, чем осталось принять)
+     */
+    public void drainTo(FileUpload upload) throws IOException {
+
+        ByteBuffer src = source();
+        int count = (int)Math.min(available(), upload.remaining());
+        if (count == 0) {
+            return;
+        }
+
+        int limit = src.limit();
+        src.limit(src.position() + count);
+        try {
+            upload.write(src);
+        }
+        finally {
+            src.limit(limit);
+        }
+    }
+
+
+    /**
+     * Все неразобранные байты (при переключении на двоичный протокол).
+     * После их разбора - вызвать release()
+     */
+    public ByteBuffer remaining() {
+
+        ByteBuffer src = source();
+        return src != null ? src : ByteBuffer.allocate(0);
+    }
+
+
+    /**
+     * Сколько байт прочитано и еще не разобрано
+     */
+    public int available() {
+
+        ByteBuffer src = source();
+        return src != null ? src.remaining() : 0;
+    }
+
+    /**
+     * Уже прочитана хотя бы одна целая строка
+     */
+    public boolean hasLine() {
+
+        ByteBuffer src = source();
+        return src != null && indexOfEol(src) >= 0;
+    }
+
+    /**
+     * Клиент шлет строку длиннее MAX_LINE (соединение надо закрывать)
+     */
+    public boolean isOverflow() {
+        return available() > MAX_LINE && !hasLine();
+    }
+
+
+    private ByteBuffer source() {
+        return input != null ? input : accumulator;
+    }
+
+
+    private static int indexOfEol(ByteBuffer src) {
+
+        for (int i = src.position(); i < src.limit(); i++) {
+            if (src.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * В накопителе должно найтись место еще для count байт (кроме неразобранных)
+     */
+    private void ensureCapacity(int count) {
+
+        int size = accumulator.remaining();
+        if (size + count <= accumulator.capacity()) {
+            return;
+        }
+
+        ByteBuffer bigger = pool.acquire(size + count);
+        bigger.put(accumulator);
+        bigger.flip();
+
+        pool.release(accumulator);
+        accumulator = bigger;
+    }
+}
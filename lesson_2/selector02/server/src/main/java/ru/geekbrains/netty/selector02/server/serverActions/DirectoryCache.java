@@ -0,0 +1,184 @@
+package ru.geekbrains.netty.selector02.server.serverActions;
+
+import ru.geekbrains.netty.selector02.server.entities.DirectoryListing;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Кэш ответов LIST: каталог -> уже закодированный DirectoryListing.
+ * <br>
+ * Каталог читается и кодируется только при первом LIST после изменения,
+ * повторные LIST - без обращений к файловой системе и без кодирования.
+ * Изменения ловит WatchService (отдельный поток): создание/удаление файла в каталоге сбрасывает его запись.
+ * <br>
+ * WatchService недоступен - кэш не используется, каждый LIST читает каталог заново
+ */
+public class DirectoryCache {
+
+    private static final Logger log = LogManager.getLogger(DirectoryCache.class);
+
+    private final Map<Path, DirectoryListing> listings = new ConcurrentHashMap<>();
+
+    // каталоги, за которыми уже следит WatchService
+    private final Map<Path, WatchKey> watched = new ConcurrentHashMap<>();
+
+    // сколько раз что-то сбрасывалось - каталог, прочитанный до сброса, в кэш не кладем
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final Function<String,String> reader = new DirectoryReader();
+
+    // null - кэш выключен
+    private final WatchService watchService;
+
+
+    public DirectoryCache() {
+
+        WatchService service = null;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            log.warn("WatchService недоступен, LIST без кэша", e);
+        }
+        watchService = service;
+
+        if (watchService != null) {
+            Thread t = new Thread(this::watch, "DirectoryWatcher");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+
+    /**
+     * Содержимое каталога
+     * @return null - каталог прочитать не удалось
+     */
+    public DirectoryListing get(String dir) {
+
+        Path path = Paths.get(dir).toAbsolutePath().normalize();
+
+        DirectoryListing listing = listings.get(path);
+        if (listing != null) {
+            return listing;
+        }
+
+        // Сначала подписка, потом чтение - изменение во время чтения не потеряется
+        boolean cacheable = watch(path);
+        long version = invalidations.get();
+
+        String text = reader.apply(dir);
+        if (text == null) {
+            return null;
+        }
+        listing = new DirectoryListing(text);
+
+        if (cacheable && invalidations.get() == version) {
+
+            listings.putIfAbsent(path, listing);
+
+            // сброс мог проскочить между проверкой и putIfAbsent
+            if (invalidations.get() != version) {
+                listings.remove(path, listing);
+            }
+        }
+        return listing;
+    }
+
+
+    /**
+     * Следить за каталогом (один раз)
+     * @return false - не получается, кэшировать каталог нельзя
+     */
+    private boolean watch(Path path) {
+
+        if (watchService == null) {
+            return false;
+        }
+
+        if (watched.containsKey(path)) {
+            return true;
+        }
+
+        try {
+            watched.computeIfAbsent(path, p -> {
+                try {
+                    return p.register(watchService,
+                                      StandardWatchEventKinds.ENTRY_CREATE,
+                                      StandardWatchEventKinds.ENTRY_DELETE);
+                }
+                catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            return true;
+        }
+        // (и ClosedWatchServiceException)
+        catch (IllegalStateException e) {
+            log.warn("can't watch {}", path, e);
+            return false;
+        }
+    }
+
+
+    private void invalidate(Path path) {
+
+        invalidations.incrementAndGet();
+        listings.remove(path);
+    }
+
+
+    /**
+     * Поток WatchService: сбрасываем записи изменившихся каталогов
+     */
+    private void watch() {
+
+        try {
+            while (true) {
+
+                WatchKey key = watchService.take();
+                Path path = (Path) key.watchable();
+
+                boolean overflow = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        overflow = true;
+                    }
+                }
+
+                // события потерялись - неизвестно, что поменялось, сбрасываем все
+                if (overflow) {
+                    invalidations.incrementAndGet();
+                    listings.clear();
+                }
+                else {
+                    invalidate(path);
+                }
+
+                // каталог удалили - больше не следим и не кэшируем
+                if (!key.reset()) {
+                    watched.remove(path, key);
+                    invalidate(path);
+                }
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException e) {
+            log.debug("DirectoryWatcher остановлен");
+        }
+    }
+}
@@ -1,13 +1,25 @@
 package ru.geekbrains.netty.selector02.server.serverActions;
 
+import ru.geekbrains.netty.selector02.server.entities.FileUpload;
+import ru.geekbrains.netty.selector02.server.entities.ListingStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.function.Function;
 
+/**
+ * Записи каталога для LIST без параметров ("- name\n" на файл, как в постраничном LIST).
+ * Временные файлы недокачанных PUT пропускаются
+ */
 public class DirectoryReader implements Function<String,String> {
 
+    private static final Logger log = LogManager.getLogger(DirectoryReader.class);
+
     @Override
     public String apply(String dir) {
 
@@ -18,12 +30,16 @@ public class DirectoryReader implements Function<String,String> {
             Path path = Paths.get(dir);
             try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
                 for (Path entry : stream) {
-                    sb.append(entry.getFileName()).append("\n");
+
+                    String name = entry.getFileName().toString();
+                    if (!FileUpload.isPart(name)) {
+                        sb.append(ListingStream.entry(name));
+                    }
                 }
             }
             result = sb.toString();
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("can't list {}", dir, e);
         }
 
         return result;
@@ -0,0 +1,286 @@
+package ru.geekbrains.netty.selector02.server.serverActions;
+
+import ru.geekbrains.netty.selector02.server.entities.MerkleTree;
+import ru.geekbrains.netty.selector02.server.utils.LibUtil;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * HASH &lt;name&gt; - дерево хэшей файла из dataRoot (см. MerkleTree).
+ * <br>
+ * Ответ: "OK &lt;size&gt; &lt;blockSize&gt; &lt;blocks&gt; &lt;root&gt;\n" и blocks строк с хэшами блоков,
+ * или "ERR ...\n" (в двоичном протоколе хэши блоков - DATA-кадрами после RESPONSE, см. MerkleTree.frames).
+ * По корню клиент пропускает файл, который у него уже есть,
+ * по хэшам блоков - проверяет куски, скачанные параллельно (GET name offset length).
+ * <br>
+ * Дерево считается при первом HASH - блоки файла читаются и хэшируются параллельно (fubar.hashThreads потоков),
+ * и остается в кэше (последние MAX_TREES файлов), пока у файла не поменяются mtime или размер.
+ * Одновременные HASH одного файла ждут одно и то же вычисление - файл читается один раз
+ */
+public class FileHasher {
+
+    private static final Logger log = LogManager.getLogger(FileHasher.class);
+
+    // блоки меньше MIN_BLOCK_SIZE не берем (миллионы листьев на файл, 0 и меньше - деление на ноль)
+    private static final int MIN_BLOCK_SIZE = 4 * 1024;
+
+    public static final int BLOCK_SIZE =
+            Math.max(MIN_BLOCK_SIZE, Integer.getInteger("fubar.hashBlock", 1024 * 1024));
+
+    private static final int THREADS =
+            Math.max(1, Integer.getInteger("fubar.hashThreads", Runtime.getRuntime().availableProcessors()));
+
+    // сколько деревьев помнить (дерево - 32 байта на блок)
+    private static final int MAX_TREES = 4096;
+
+    private final String dataRoot;
+
+    private final ExecutorService executor;
+
+    // LRU: порядок доступа, самый давний - первый
+    private final Map<Path, MerkleTree> trees = new LinkedHashMap<Path, MerkleTree>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, MerkleTree> eldest) {
+            return size() > MAX_TREES;
+        }
+    };
+
+    // деревья, которые сейчас считаются (повторный HASH того же файла ждет это вычисление)
+    private final Map<Path, CompletableFuture<MerkleTree>> computing = new ConcurrentHashMap<>();
+
+    // у каждого потока свой буфер блока и свой MessageDigest
+    private final ThreadLocal<ByteBuffer> blockBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocate(BLOCK_SIZE));
+    private final ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(MerkleTree::sha256);
+
+
+    public FileHasher(String dataRoot) {
+
+        this.dataRoot = dataRoot;
+
+        final CustomizableThreadFactory threadFactory = new CustomizableThreadFactory();
+        threadFactory.setDaemon(true);
+        threadFactory.setThreadNamePrefix("Hasher-");
+
+        executor = Executors.newFixedThreadPool(THREADS, threadFactory);
+    }
+
+
+    /**
+     * Ответ на HASH (поток ждет, пока дерево посчитается)
+     * @param binary ответ кадрами - отдается в out, иначе возвращается текстом
+     * @return текст ответа или ошибки, null - ответ отдан в out
+     */
+    public String hash(String name, boolean binary, Consumer<ByteBuffer> out) {
+
+        Path path = LibUtil.resolveInside(dataRoot, name);
+
+        BasicFileAttributes attrs;
+        try {
+            attrs = path == null ? null : Files.readAttributes(path, BasicFileAttributes.class);
+        }
+        catch (IOException e) {
+            attrs = null;
+        }
+
+        if (attrs == null || !attrs.isRegularFile()) {
+            return "ERR no such file: " + name + "\n";
+        }
+
+        long size = attrs.size();
+        long modified = attrs.lastModifiedTime().toMillis();
+
+        MerkleTree tree;
+        try {
+            tree = tree(path, size, modified);
+        }
+        catch (IOException e) {
+            log.error("can't hash {}", name, e);
+            return "ERR can't read file: " + name + "\n";
+        }
+
+        if (tree == null) {
+            return "ERR file changed: " + name + "\n";
+        }
+
+        if (binary) {
+            tree.frames(out);
+            return null;
+        }
+        return tree.format();
+    }
+
+
+    /**
+     * Дерево этой версии файла: из кэша, из уже идущего вычисления или посчитать
+     * @return null - файл меняли, пока считали (дерево могло собраться из кусков разных версий)
+     */
+    private MerkleTree tree(Path path, long size, long modified) throws IOException {
+
+        MerkleTree tree = cached(path);
+        if (tree != null && tree.matches(size, modified)) {
+            return tree;
+        }
+
+        CompletableFuture<MerkleTree> pending = new CompletableFuture<>();
+        CompletableFuture<MerkleTree> running = computing.putIfAbsent(path, pending);
+
+        // дерево этого файла уже считает другой поток - ждем его, файл второй раз не читаем
+        if (running != null) {
+            tree = await(running);
+            return tree != null && tree.matches(size, modified) ? tree : null;
+        }
+
+        try {
+            // пока ставили pending, другой поток мог досчитать и убрать свое вычисление
+            tree = cached(path);
+            if (tree == null || !tree.matches(size, modified)) {
+
+                tree = compute(path, modified);
+
+                if (sameVersion(path, tree)) {
+                    synchronized (trees) {
+                        trees.put(path, tree);
+                    }
+                }
+                else {
+                    tree = null;
+                }
+            }
+            pending.complete(tree);
+            return tree;
+        }
+        catch (IOException | RuntimeException e) {
+            pending.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            computing.remove(path, pending);
+        }
+    }
+
+
+    private MerkleTree cached(Path path) {
+
+        synchronized (trees) {
+            return trees.get(path);
+        }
+    }
+
+
+    private static MerkleTree await(CompletableFuture<MerkleTree> running) throws IOException {
+
+        try {
+            return running.get();
+        }
+        catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ?
+                  (IOException) e.getCause() : new IOException(e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        }
+    }
+
+
+    /**
+     * Посчитать дерево: блоки делятся на THREADS непрерывных полос, каждая полоса - своим потоком
+     * (позиционное чтение FileChannel из разных потоков безопасно)
+     */
+    private MerkleTree compute(Path path, long modified) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+
+            long size = channel.size();
+            int blocks = (int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+            byte[][] leaves = new byte[blocks][];
+
+            int stripes = Math.min(THREADS, blocks);
+            List<Future<?>> futures = new ArrayList<>(stripes);
+
+            for (int s = 0; s < stripes; s++) {
+
+                int from = (int) ((long) blocks * s / stripes);
+                int to = (int) ((long) blocks * (s + 1) / stripes);
+
+                futures.add(executor.submit(() -> {
+                    for (int i = from; i < to; i++) {
+                        leaves[i] = hashBlock(channel, (long) i * BLOCK_SIZE, size);
+                    }
+                    return null;
+                }));
+            }
+
+            try {
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            }
+            catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ?
+                      (IOException) e.getCause() : new IOException(e.getCause());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.forEach(f -> f.cancel(true));
+                throw new IOException("interrupted");
+            }
+
+            return new MerkleTree(size, modified, BLOCK_SIZE, leaves);
+        }
+    }
+
+
+    private byte[] hashBlock(FileChannel channel, long position, long size) throws IOException {
+
+        ByteBuffer buffer = blockBuffer.get();
+        buffer.clear();
+        buffer.limit((int) Math.min(BLOCK_SIZE, size - position));
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("file truncated while hashing");
+            }
+        }
+        buffer.flip();
+
+        MessageDigest md = digest.get();
+        md.update(MerkleTree.LEAF);
+        md.update(buffer.array(), 0, buffer.limit());
+        return md.digest();
+    }
+
+
+    private static boolean sameVersion(Path path, MerkleTree tree) {
+
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            return tree.matches(attrs.size(), attrs.lastModifiedTime().toMillis());
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+}
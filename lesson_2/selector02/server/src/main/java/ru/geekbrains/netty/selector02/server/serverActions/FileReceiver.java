@@ -0,0 +1,88 @@
+package ru.geekbrains.netty.selector02.server.serverActions;
+
+import ru.geekbrains.netty.selector02.server.entities.Connection;
+import ru.geekbrains.netty.selector02.server.entities.FileUpload;
+import ru.geekbrains.netty.selector02.server.utils.LibUtil;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * PUT &lt;name&gt; &lt;length&gt; - прием файла от клиента в dataRoot.
+ * <br>
+ * После заголовка клиент передает ровно length байт содержимого,
+ * соединение на это время переключается в режим приема файла (Connection.getUpload()).
+ * Ответ по окончании приема: "OK &lt;length&gt;\n" или "ERR ...\n"
+ */
+public class FileReceiver {
+
+    private static final Logger log = LogManager.getLogger(FileReceiver.class);
+
+    private final String dataRoot;
+
+    public FileReceiver(String dataRoot) {
+        this.dataRoot = dataRoot;
+    }
+
+
+    /**
+     * Команда - заголовок PUT ?
+     */
+    public static boolean isPut(String msg) {
+        return msg.regionMatches(true, 0, "put ", 0, 4);
+    }
+
+
+    /**
+     * Начать прием файла
+     * @return null - если соединение переключено в режим приема, иначе текст ошибки для клиента
+     */
+    public String begin(Connection connection, String msg) {
+        return begin(msg, connection::setUpload);
+    }
+
+
+    /**
+     * Начать прием файла
+     * @param target получает открытый прием файла (если заголовок правильный)
+     * @return null - если прием начат, иначе текст ошибки для клиента
+     */
+    public String begin(String msg, Consumer<FileUpload> target) {
+
+        String[] args = msg.trim().split("\\s+");
+
+        if (args.length != 3) {
+            return "ERR usage: put <name> <length>\n";
+        }
+
+        long length;
+        try {
+            length = Long.parseLong(args[2]);
+        }
+        catch (NumberFormatException e) {
+            length = -1;
+        }
+
+        if (length < 0) {
+            return "ERR bad length: " + args[2] + "\n";
+        }
+
+        // ".part" - временные файлы приема, такой файл не был бы виден в LIST
+        Path path = FileUpload.isPart(args[1]) ? null : LibUtil.resolveInside(dataRoot, args[1]);
+        if (path == null) {
+            return "ERR bad file name: " + args[1] + "\n";
+        }
+
+        try {
+            target.accept(new FileUpload(path, length));
+        }
+        catch (Exception e) {
+            log.error("can't create {}", args[1], e);
+            return "ERR can't write file: " + args[1] + "\n";
+        }
+        return null;
+    }
+}
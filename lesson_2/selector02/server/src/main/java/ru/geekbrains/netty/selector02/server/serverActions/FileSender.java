@@ -0,0 +1,325 @@
+package ru.geekbrains.netty.selector02.server.serverActions;
+
+import ru.geekbrains.netty.selector02.server.entities.Connection;
+import ru.geekbrains.netty.selector02.server.entities.FileRegion;
+import ru.geekbrains.netty.selector02.server.protocol.Frame;
+import ru.geekbrains.netty.selector02.server.protocol.FrameDecoder;
+import ru.geekbrains.netty.selector02.server.utils.LibUtil;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.LongConsumer;
+
+/**
+ * GET &lt;name&gt; - передача файла из dataRoot клиенту.
+ * <br>
+ * Ответ: "OK &lt;size&gt;\n", затем size байт файла (через FileChannel.transferTo)
+ * или "ERR ...\n"
+ * <br>
+ * В двоичном режиме: RESPONSE "OK &lt;size&gt;", затем файл DATA-кадрами
+ * (payload кадра - кусок файла, тоже через transferTo)
+ * <br>
+ * GET &lt;name&gt; &lt;offset&gt; &lt;length&gt; - только часть файла (докачка, параллельная загрузка кусками
+ * по нескольким соединениям). Ответ: "OK &lt;count&gt; &lt;total&gt;\n" и count байт с offset,
+ * total - полный размер файла. Часть за концом файла обрезается (count &lt; length)
+ * <br>
+ * Горячие файлы отдаются из MappedFileCache: в очередь встают куски общего отображения
+ * (без открытия и чтения файла на каждый запрос)
+ */
+public class FileSender {
+
+    private static final Logger log = LogManager.getLogger(FileSender.class);
+
+    private final String dataRoot;
+    private final MappedFileCache mappedFiles;
+
+    public FileSender(String dataRoot, MappedFileCache mappedFiles) {
+
+        this.dataRoot = dataRoot;
+        this.mappedFiles = mappedFiles;
+    }
+
+
+    /**
+     * Поставить заголовок и файл в очередь на отправку
+     * @param length -1 - весь файл
+     * @return null - если все поставлено в очередь, иначе текст ошибки для клиента
+     */
+    public String send(Connection connection, String name, long offset, long length) {
+
+        Path path = LibUtil.resolveInside(dataRoot, name);
+
+        if (path == null || !Files.isRegularFile(path)) {
+            return "ERR no such file: " + name + "\n";
+        }
+
+        ByteBuffer mapped = mappedFiles.get(path);
+        if (mapped != null) {
+            return send(connection, mapped, offset, length);
+        }
+
+        // файл закрывает последний FileRegion в очереди, а пока он туда не встал - мы сами
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(path.toFile(), "r");
+            long size = file.length();
+
+            long count = count(size, offset, length);
+            if (count < 0) {
+                return "ERR bad range: " + offset + " (size " + size + ")\n";
+            }
+
+            byte[] header = header(size, count, length);
+
+            // заголовок и файл встают в очередь друг за другом - порядок сохранится
+            if (!connection.isBinary()) {
+                connection.enqueue(ByteBuffer.wrap(header));
+                connection.enqueue(new FileRegion(file, offset, count));
+                file = null;
+                return null;
+            }
+
+            connection.enqueue(Frame.encode(Frame.RESPONSE, header));
+
+            long position = 0;
+            do {
+                int chunk = (int)Math.min(count - position, FrameDecoder.MAX_PAYLOAD);
+                boolean last = position + chunk == count;
+
+                connection.enqueue(Frame.header(Frame.DATA, chunk));
+                connection.enqueue(new FileRegion(file, offset + position, chunk, last));
+                position += chunk;
+            }
+            while (position < count);
+
+            file = null;
+        }
+        catch (Exception e) {
+            log.error("can't read {}", name, e);
+            return "ERR can't read file: " + name + "\n";
+        }
+        finally {
+            // length(), проверка диапазона или enqueue не прошли - файл в очередь не передан
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {}
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Передать заголовок и файл прямо в блокирующий канал (режим thread-per-connection).
+     * <br>
+     * Пока идет передача, в канал больше никто писать не должен (кадры файла не перемешаются с чужими)
+     * @param binary соединение на двоичном протоколе (файл DATA-кадрами)
+     * @param length -1 - весь файл
+     * @param written сюда сообщается, сколько байт ушло в канал
+     * @return null - если файл передан целиком, иначе текст ошибки для клиента
+     * @throws IOException ошибка записи в канал (соединение надо закрывать)
+     */
+    public String send(WritableByteChannel channel, boolean binary, String name, long offset, long length,
+                       LongConsumer written) throws IOException {
+
+        Path path = LibUtil.resolveInside(dataRoot, name);
+
+        if (path == null || !Files.isRegularFile(path)) {
+            return "ERR no such file: " + name + "\n";
+        }
+
+        ByteBuffer mapped = mappedFiles.get(path);
+        if (mapped != null) {
+            return send(channel, binary, mapped, offset, length, written);
+        }
+
+        FileChannel file;
+        try {
+            file = FileChannel.open(path, StandardOpenOption.READ);
+        }
+        catch (Exception e) {
+            log.error("can't read {}", name, e);
+            return "ERR can't read file: " + name + "\n";
+        }
+
+        try {
+            long size = file.size();
+
+            long count = count(size, offset, length);
+            if (count < 0) {
+                return "ERR bad range: " + offset + " (size " + size + ")\n";
+            }
+
+            byte[] header = header(size, count, length);
+
+            if (!binary) {
+                written.accept(write(channel, ByteBuffer.wrap(header)));
+                written.accept(transfer(file, offset, count, channel));
+                return null;
+            }
+
+            written.accept(write(channel, Frame.encode(Frame.RESPONSE, header)));
+
+            long position = 0;
+            do {
+                int chunk = (int)Math.min(count - position, FrameDecoder.MAX_PAYLOAD);
+
+                written.accept(write(channel, Frame.header(Frame.DATA, chunk)));
+                written.accept(transfer(file, offset + position, chunk, channel));
+                position += chunk;
+            }
+            while (position < count);
+        }
+        finally {
+            file.close();
+        }
+        return null;
+    }
+
+
+    /**
+     * Поставить в очередь куски отображения из кэша (direct-буферы уходят в сокет без копирования через heap)
+     */
+    private static String send(Connection connection, ByteBuffer mapped, long offset, long length) {
+
+        long size = mapped.capacity();
+
+        long count = count(size, offset, length);
+        if (count < 0) {
+            return "ERR bad range: " + offset + " (size " + size + ")\n";
+        }
+
+        byte[] header = header(size, count, length);
+
+        if (!connection.isBinary()) {
+            connection.enqueue(ByteBuffer.wrap(header));
+            connection.enqueue(slice(mapped, offset, count));
+            return null;
+        }
+
+        connection.enqueue(Frame.encode(Frame.RESPONSE, header));
+
+        long position = 0;
+        do {
+            int chunk = (int)Math.min(count - position, FrameDecoder.MAX_PAYLOAD);
+
+            connection.enqueue(Frame.header(Frame.DATA, chunk));
+            connection.enqueue(slice(mapped, offset + position, chunk));
+            position += chunk;
+        }
+        while (position < count);
+
+        return null;
+    }
+
+
+    /**
+     * Записать куски отображения из кэша в блокирующий канал
+     */
+    private static String send(WritableByteChannel channel, boolean binary, ByteBuffer mapped, long offset, long length,
+                               LongConsumer written) throws IOException {
+
+        long size = mapped.capacity();
+
+        long count = count(size, offset, length);
+        if (count < 0) {
+            return "ERR bad range: " + offset + " (size " + size + ")\n";
+        }
+
+        byte[] header = header(size, count, length);
+
+        if (!binary) {
+            written.accept(write(channel, ByteBuffer.wrap(header)));
+            written.accept(write(channel, slice(mapped, offset, count)));
+            return null;
+        }
+
+        written.accept(write(channel, Frame.encode(Frame.RESPONSE, header)));
+
+        long position = 0;
+        do {
+            int chunk = (int)Math.min(count - position, FrameDecoder.MAX_PAYLOAD);
+
+            written.accept(write(channel, Frame.header(Frame.DATA, chunk)));
+            written.accept(write(channel, slice(mapped, offset + position, chunk)));
+            position += chunk;
+        }
+        while (position < count);
+
+        return null;
+    }
+
+
+    /**
+     * Кусок отображения (свой duplicate - позиции разных кусков и соединений независимы)
+     */
+    private static ByteBuffer slice(ByteBuffer mapped, long offset, long count) {
+
+        ByteBuffer slice = mapped.duplicate();
+        slice.position((int) offset);
+        slice.limit((int) (offset + count));
+        return slice;
+    }
+
+
+    /**
+     * Сколько байт передавать (-1 - offset за концом файла)
+     */
+    private static long count(long size, long offset, long length) {
+
+        if (length < 0) {
+            return size;
+        }
+        if (offset > size) {
+            return -1;
+        }
+        return Math.min(length, size - offset);
+    }
+
+
+    /**
+     * "OK &lt;size&gt;" для всего файла, "OK &lt;count&gt; &lt;total&gt;" для части
+     */
+    private static byte[] header(long size, long count, long length) {
+
+        String header = length < 0 ? "OK " + size + "\n" : "OK " + count + " " + size + "\n";
+        return header.getBytes(StandardCharsets.UTF_8);
+    }
+
+
+    private static long write(WritableByteChannel channel, ByteBuffer data) throws IOException {
+
+        int count = data.remaining();
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+        return count;
+    }
+
+
+    private static long transfer(FileChannel file, long position, long count, WritableByteChannel channel) throws IOException {
+
+        long done = 0;
+        while (done < count) {
+
+            long sent = file.transferTo(position + done, count - done, channel);
+            // файл укоротили, пока передавали - клиент ждет ровно count байт, дальше только закрывать
+            if (sent <= 0 && position + done >= file.size()) {
+                throw new IOException("file truncated during transfer");
+            }
+            done += sent;
+        }
+        return done;
+    }
+}
@@ -0,0 +1,211 @@
+package ru.geekbrains.netty.selector02.server.serverActions;
+
+import ru.geekbrains.netty.selector02.server.metrics.ServerMetrics;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Кэш популярных файлов для GET: файл -> MappedByteBuffer (read-only, общий для всех соединений).
+ * <br>
+ * Каждому GET достается только duplicate() отображения - файл не открывается и не читается,
+ * данные уходят в сокет прямо из page cache. Проверка на каждый запрос - один stat (размер и mtime):
+ * файл изменился (PUT заменяет файл целиком) - отображается заново.
+ * <br>
+ * Кэшируются только горячие файлы - запрошенные повторно, пока о первом запросе еще помним (SEEN штук).
+ * Суммарный размер отображений ограничен (fubar.mappedCache байт), лишнее вытесняется по LRU.
+ * Файлы больше fubar.mappedMaxFile не кэшируются (один большой файл вытеснял бы все остальные) -
+ * они передаются как раньше, через transferTo.
+ * <br>
+ * Вытесненное отображение освобождает GC, когда уйдут и все его куски из очередей соединений
+ * (unmap в Java 8 без Unsafe нет) - поэтому занятое адресное пространство может ненадолго превышать лимит.
+ * Файл, укороченный на месте чужим процессом, дает ошибку записи в сокет - соединение закрывается
+ */
+public class MappedFileCache {
+
+    private static final Logger log = LogManager.getLogger(MappedFileCache.class);
+
+    // 0 - кэш выключен
+    public static final long CAPACITY = Long.getLong("fubar.mappedCache", 256L * 1024 * 1024);
+    public static final long MAX_FILE =
+            Math.min(Long.getLong("fubar.mappedMaxFile", CAPACITY / 4), Integer.MAX_VALUE);
+
+    // сколько файлов, запрошенных по разу, помнить
+    private static final int SEEN = 1024;
+
+    private final ServerMetrics metrics;
+
+    // LRU: порядок доступа, самый давний - первый
+    private final LinkedHashMap<Path, MappedFile> files = new LinkedHashMap<>(16, 0.75f, true);
+
+    // запрошены один раз и еще не в кэше (второй запрос - файл горячий)
+    private final LinkedHashMap<Path, Boolean> seen = new LinkedHashMap<Path, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Boolean> eldest) {
+            return size() > SEEN;
+        }
+    };
+
+    // сумма размеров отображений в files
+    private long mappedBytes;
+
+
+    public MappedFileCache(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+
+    /**
+     * Файл из кэша (можно из любого потока)
+     * @return отображение всего файла (свой duplicate, позицию и limit можно менять),
+     *         null - файла нет в кэше (не горячий, большой, не обычный файл) - передавать как обычно
+     */
+    public ByteBuffer get(Path path) {
+
+        if (CAPACITY <= 0) {
+            return null;
+        }
+
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        }
+        catch (IOException e) {
+            return null;
+        }
+
+        if (!attrs.isRegularFile() || attrs.size() == 0 || attrs.size() > MAX_FILE) {
+            return null;
+        }
+
+        long modified = attrs.lastModifiedTime().toMillis();
+
+        synchronized (this) {
+
+            MappedFile file = files.get(path);
+            if (file != null) {
+
+                if (file.matches(attrs.size(), modified)) {
+                    metrics.mappedHit();
+                    return file.buffer.duplicate();
+                }
+                // файл заменили
+                remove(path);
+            }
+            // первый запрос - только запоминаем
+            else if (seen.remove(path) == null) {
+
+                seen.put(path, Boolean.TRUE);
+                metrics.mappedMiss();
+                return null;
+            }
+        }
+
+        metrics.mappedMiss();
+
+        // отображаем без блокировки - другие файлы отдаются, пока этот открывается
+        MappedFile file = map(path, modified);
+        if (file == null) {
+            return null;
+        }
+
+        synchronized (this) {
+
+            MappedFile other = files.get(path);
+            if (other != null && other.matches(file.size, file.modified)) {
+                return other.buffer.duplicate();
+            }
+            if (other != null) {
+                remove(path);
+            }
+
+            files.put(path, file);
+            mappedBytes += file.size;
+            evict();
+        }
+        return file.buffer.duplicate();
+    }
+
+
+    /**
+     * Занято отображениями, байт (только что вытесненные, но еще не собранные GC - не в счет)
+     */
+    public synchronized long getMappedBytes() {
+        return mappedBytes;
+    }
+
+
+    private MappedFile map(Path path, long modified) {
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+
+            // размер - по открытому файлу: отображение не должно выходить за его конец
+            long size = channel.size();
+            if (size == 0 || size > MAX_FILE) {
+                return null;
+            }
+
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).asReadOnlyBuffer();
+            return new MappedFile(buffer, size, modified);
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            log.warn("can't map {}", path, e);
+            return null;
+        }
+    }
+
+
+    private void remove(Path path) {
+
+        MappedFile file = files.remove(path);
+        if (file != null) {
+            mappedBytes -= file.size;
+        }
+    }
+
+
+    /**
+     * Вытеснить самые давние, пока не влезем в CAPACITY
+     */
+    private void evict() {
+
+        Iterator<MappedFile> it = files.values().iterator();
+        while (mappedBytes > CAPACITY && it.hasNext()) {
+
+            MappedFile file = it.next();
+            it.remove();
+            mappedBytes -= file.size;
+        }
+    }
+
+
+    private static class MappedFile {
+
+        // read-only, позиция и limit не меняются - наружу только duplicate()
+        final ByteBuffer buffer;
+        final long size;
+        final long modified;
+
+        MappedFile(ByteBuffer buffer, long size, long modified) {
+
+            this.buffer = buffer;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        boolean matches(long size, long modified) {
+            return this.size == size && this.modified == modified;
+        }
+    }
+}
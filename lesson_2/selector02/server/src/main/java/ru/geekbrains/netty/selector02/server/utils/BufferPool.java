@@ -0,0 +1,165 @@
+package ru.geekbrains.netty.selector02.server.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Пул direct ByteBuffer'ов, которые выдаются на время одной операции чтения/записи.
+ * <br>
+ * Размеры - классы степеней двойки от 1K до 64K. Буферы нарезаются из больших
+ * direct-кусков памяти (slab) и после release() возвращаются в пул, а не освобождаются.
+ * Сначала буфер кладется в кэш текущего потока (без синхронизации), если там
+ * места нет - в общую очередь класса.
+ * <br>
+ * Соединение буфер не держит: между чтениями простаивающий клиент памяти под буферы не занимает,
+ * а чтение/запись идет сразу из direct-памяти (без промежуточного копирования внутри JDK)
+ */
+public class BufferPool {
+
+    // 1K .. 64K
+    private static final int MIN_SHIFT = 10;
+    private static final int MAX_SHIFT = 16;
+    public static final int MAX_SIZE = 1 << MAX_SHIFT;
+
+    // размер куска памяти, который нарезается на буферы одного класса
+    private static final int SLAB_SIZE = 256 * 1024;
+
+    // сколько свободных буферов каждого класса держит один поток
+    private static final int THREAD_CACHE_SIZE = 4;
+
+    private final Queue<ByteBuffer>[] shared;
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> cache;
+
+    // сколько direct-памяти выделено под пул
+    private final AtomicLong allocated = new AtomicLong();
+
+
+    @SuppressWarnings("unchecked")
+    public BufferPool() {
+
+        int classes = MAX_SHIFT - MIN_SHIFT + 1;
+
+        shared = new Queue[classes];
+        for (int i = 0; i < classes; i++) {
+            shared[i] = new ConcurrentLinkedQueue<>();
+        }
+
+        cache = ThreadLocal.withInitial(() -> {
+            ArrayDeque<ByteBuffer>[] local = new ArrayDeque[classes];
+            for (int i = 0; i < classes; i++) {
+                local[i] = new ArrayDeque<>(THREAD_CACHE_SIZE);
+            }
+            return local;
+        });
+    }
+
+
+    /**
+     * Взять буфер
+     * @param size сколько байт нужно (limit буфера), больше MAX_SIZE - буфер выделяется без пула
+     */
+    public ByteBuffer acquire(int size) {
+
+        int cls = sizeClass(size);
+
+        if (cls < 0) {
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        ByteBuffer buffer = cache.get()[cls].poll();
+
+        if (buffer == null) {
+            buffer = shared[cls].poll();
+        }
+
+        if (buffer == null) {
+            buffer = allocateSlab(cls);
+        }
+
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+
+    /**
+     * Вернуть буфер в пул (после этого им пользоваться нельзя)
+     */
+    public void release(ByteBuffer buffer) {
+
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+
+        int cls = sizeClass(buffer.capacity());
+
+        // не из пула (выделен без пула) - пусть собирает GC
+        if (cls < 0 || buffer.capacity() != 1 << (cls + MIN_SHIFT)) {
+            return;
+        }
+
+        ArrayDeque<ByteBuffer> local = cache.get()[cls];
+
+        if (local.size() < THREAD_CACHE_SIZE) {
+            local.push(buffer);
+        }
+        else {
+            shared[cls].offer(buffer);
+        }
+    }
+
+
+    /**
+     * Сколько direct-памяти выделено под пул (байт)
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+
+    /**
+     * Нарезать новый slab на буферы класса cls: один отдаем сразу, остальные - в общую очередь
+     */
+    private ByteBuffer allocateSlab(int cls) {
+
+        int size = 1 << (cls + MIN_SHIFT);
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(Math.max(SLAB_SIZE, size));
+        allocated.addAndGet(slab.capacity());
+
+        ByteBuffer first = null;
+
+        for (int offset = 0; offset + size <= slab.capacity(); offset += size) {
+
+            slab.limit(offset + size);
+            slab.position(offset);
+            ByteBuffer buffer = slab.slice();
+
+            if (first == null) {
+                first = buffer;
+            }
+            else {
+                shared[cls].offer(buffer);
+            }
+        }
+        return first;
+    }
+
+
+    /**
+     * Номер класса размеров, в который помещается size байт
+     * @return -1 - больше самого большого класса
+     */
+    private static int sizeClass(int size) {
+
+        if (size > MAX_SIZE) {
+            return -1;
+        }
+
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+    }
+}
@@ -3,6 +3,9 @@ package ru.geekbrains.netty.selector02.server.utils;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 public class LibUtil {
 
@@ -20,4 +23,31 @@ public class LibUtil {
     }
 
 
+    /**
+     * Путь к файлу name внутри каталога root
+     * <br>
+     * Кроме самого пути проверяется и настоящий (toRealPath): символическая ссылка внутри root
+     * не должна вести наружу. Файла может еще не быть (PUT) - тогда проверяется его каталог
+     * @return null - если name выводит за пределы root (../../etc/passwd, ссылка наружу)
+     */
+    public static Path resolveInside(String root, String name) {
+
+        try {
+            Path rootPath = Paths.get(root).toAbsolutePath().normalize();
+            Path path = rootPath.resolve(name).normalize();
+
+            if (!path.startsWith(rootPath) || path.equals(rootPath)) {
+                return null;
+            }
+
+            Path real = Files.exists(path) ? path.toRealPath() : path.getParent().toRealPath();
+            if (!real.startsWith(rootPath.toRealPath())) {
+                return null;
+            }
+            return path;
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
 }